@@ -0,0 +1,483 @@
+package flightapp;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Microbenchmarks of the application's hot paths, with machine-readable results.
+ *
+ * Each benchmark is warmed up, then measured over several fixed-length iterations; the score is
+ * the mean time per operation with a 99.9% confidence half-width, as JMH reports it.  Results
+ * are written as JSON (in JMH's result layout, so existing tooling can compare runs) or CSV.
+ *
+ * Benchmarks that need a database only run when one is configured with {@code --db}; pointing
+ * {@code flightapp.jdbc_url} at an embedded database and passing {@code --seed-flights} creates
+ * and fills a synthetic FLIGHTS table first.
+ *
+ * Usage: java flightapp.Benchmarks [--filter regex] [--format json|csv] [--out file]
+ *            [--warmup n] [--iterations n] [--time-ms ms] [--db dbconn.properties]
+ *            [--seed-flights n]
+ */
+public class Benchmarks {
+  // Results are stored here so the JIT can't discard the work that produced them
+  private static volatile Object sink;
+
+  private final List<Benchmark> benchmarks = new ArrayList<>();
+
+  /**
+   * One operation to measure; returns a value derived from its work.
+   */
+  @FunctionalInterface
+  interface Operation {
+    Object run() throws Exception;
+  }
+
+  private static final class Benchmark {
+    final String name;
+    final Map<String, String> params;
+    final Operation operation;
+
+    Benchmark(String name, Map<String, String> params, Operation operation) {
+      this.name = name;
+      this.params = params;
+      this.operation = operation;
+    }
+
+    String id() {
+      return params.isEmpty() ? name : name + params;
+    }
+  }
+
+  private static final class Result {
+    final Benchmark benchmark;
+    final double[] nanosPerOp;
+    final double mean;
+    final double error;
+
+    Result(Benchmark benchmark, double[] nanosPerOp) {
+      this.benchmark = benchmark;
+      this.nanosPerOp = nanosPerOp;
+      double sum = 0;
+      for (double sample : nanosPerOp) {
+        sum += sample;
+      }
+      this.mean = sum / nanosPerOp.length;
+      double squares = 0;
+      for (double sample : nanosPerOp) {
+        squares += (sample - mean) * (sample - mean);
+      }
+      double stddev = nanosPerOp.length > 1 ? Math.sqrt(squares / (nanosPerOp.length - 1)) : 0;
+      this.error = 3.29 * stddev / Math.sqrt(nanosPerOp.length);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    String filter = ".*";
+    String format = "json";
+    String out = null;
+    String db = null;
+    int warmup = 3;
+    int iterations = 5;
+    long timeMillis = 1000;
+    int seedFlights = 0;
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "--filter":
+          filter = args[++i];
+          break;
+        case "--format":
+          format = args[++i];
+          break;
+        case "--out":
+          out = args[++i];
+          break;
+        case "--warmup":
+          warmup = Integer.parseInt(args[++i]);
+          break;
+        case "--iterations":
+          iterations = Integer.parseInt(args[++i]);
+          break;
+        case "--time-ms":
+          timeMillis = Long.parseLong(args[++i]);
+          break;
+        case "--db":
+          db = args[++i];
+          break;
+        case "--seed-flights":
+          seedFlights = Integer.parseInt(args[++i]);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option: " + args[i]);
+      }
+    }
+
+    Benchmarks suite = new Benchmarks();
+    suite.addPasswordBenchmarks();
+    suite.addTokenizeBenchmarks();
+    suite.addSortBenchmarks();
+    suite.addRenderBenchmarks();
+    if (db != null) {
+      // Without the search cache: the search benchmarks repeat a fixed set of queries, so they
+      // would otherwise only measure cache hits
+      DBConfig.install(DBConfig.load(db).with("flightapp.search_cache.max_entries", "0"));
+      if (seedFlights > 0) {
+        seedFlights(seedFlights);
+      }
+      suite.addDatabaseBenchmarks();
+    }
+
+    Pattern pattern = Pattern.compile(filter);
+    List<Result> results = new ArrayList<>();
+    for (Benchmark benchmark : suite.benchmarks) {
+      if (pattern.matcher(benchmark.id()).find()) {
+        System.err.println("# " + benchmark.id());
+        results.add(measure(benchmark, warmup, iterations, timeMillis));
+      }
+    }
+    DBConnUtils.closePool();
+
+    try (Writer writer = out == null ? new PrintWriter(System.out) : new FileWriter(out);
+         PrintWriter pw = new PrintWriter(writer)) {
+      if (format.equals("csv")) {
+        writeCsv(results, pw);
+      } else {
+        writeJson(results, pw);
+      }
+    }
+  }
+
+  private void add(String name, Map<String, String> params, Operation operation) {
+    benchmarks.add(new Benchmark(name, params, operation));
+  }
+
+  private static Map<String, String> params(String... keyValues) {
+    Map<String, String> params = new LinkedHashMap<>();
+    for (int i = 0; i + 1 < keyValues.length; i += 2) {
+      params.put(keyValues[i], keyValues[i + 1]);
+    }
+    return params;
+  }
+
+  //
+  // Benchmarks
+  //
+
+  private void addPasswordBenchmarks() {
+    for (PasswordUtils.Algorithm algorithm : new PasswordUtils.Algorithm[] {
+        PasswordUtils.Algorithm.PBKDF2_HMAC_SHA1, PasswordUtils.Algorithm.PBKDF2_HMAC_SHA256}) {
+      PasswordUtils.Policy policy = new PasswordUtils.Policy(algorithm, 65536, 32);
+      add("password.saltAndHashPassword", params("algorithm", algorithm.name()), () -> {
+        PasswordUtils.setPolicy(policy);
+        return PasswordUtils.saltAndHashPassword("hunter2");
+      });
+    }
+
+    PasswordUtils.Policy current = PasswordUtils.policy();
+    byte[] stored = PasswordUtils.saltAndHashPassword("hunter2");
+    add("password.plaintextMatchesSaltedHash", params("format", "current"),
+        () -> PasswordUtils.plaintextMatchesSaltedHash("hunter2", stored));
+
+    byte[] salt = PasswordUtils.generateSalt();
+    byte[] legacyHash = PasswordUtils.hashWithSalt("hunter2", salt);
+    byte[] legacy = new byte[salt.length + legacyHash.length];
+    System.arraycopy(salt, 0, legacy, 0, salt.length);
+    System.arraycopy(legacyHash, 0, legacy, salt.length, legacyHash.length);
+    add("password.plaintextMatchesSaltedHash", params("format", "legacy"),
+        () -> PasswordUtils.plaintextMatchesSaltedHash("hunter2", legacy));
+    PasswordUtils.setPolicy(current);
+  }
+
+  private void addTokenizeBenchmarks() {
+    String[][] commands = {
+        {"plain", "search Seattle Boston 0 10 20"},
+        {"quoted", "search \"Seattle WA\" \"Boston MA\" 0 10 20"},
+        {"short", "book 3"}};
+    for (String[] command : commands) {
+      add("service.tokenize", params("command", command[0]),
+          () -> FlightService.tokenize(command[1]));
+    }
+  }
+
+  private void addSortBenchmarks() {
+    for (int size : new int[] {10, 100, 1000, 10000}) {
+      List<Query.Itinerary> itineraries = randomItineraries(size, new Random(size));
+      List<Query.Itinerary> scratch = new ArrayList<>(size);
+      add("itinerary.sort", params("size", Integer.toString(size)), () -> {
+        scratch.clear();
+        scratch.addAll(itineraries);
+        Collections.sort(scratch);
+        return scratch.get(0);
+      });
+    }
+  }
+
+  private void addRenderBenchmarks() {
+    Random random = new Random(1);
+    Query.Flight flight = randomFlight(1, random);
+    Query.Itinerary direct = new Query.Itinerary(flight, null);
+    Query.Itinerary twoHop = new Query.Itinerary(flight, randomFlight(2, random));
+    add("render.flight", params(), flight::toString);
+    add("render.itinerary", params("flights", "1"), direct::toString);
+    add("render.itinerary", params("flights", "2"), twoHop::toString);
+  }
+
+  private void addDatabaseBenchmarks() throws SQLException, IOException {
+    List<String[]> routes = new ArrayList<>();
+    FlightIndex index;
+    try (Connection conn = DBConnUtils.openConnection()) {
+      index = FlightIndex.load(conn);
+      try (Statement stmt = conn.createStatement()) {
+        stmt.setMaxRows(1000);
+        try (ResultSet rs = stmt.executeQuery(
+            "SELECT origin_city, dest_city, day_of_month FROM FLIGHTS WHERE canceled = 0")) {
+          while (rs.next()) {
+            routes.add(new String[] {rs.getString("origin_city"), rs.getString("dest_city"),
+                                     Integer.toString(rs.getInt("day_of_month"))});
+          }
+        }
+      }
+    }
+    if (routes.isEmpty()) {
+      System.err.println("# FLIGHTS is empty; skipping database benchmarks");
+      return;
+    }
+
+    // Pair each origin with another row's destination so that most searches need two hops
+    Random random = new Random(7);
+    int[] next = new int[1];
+    String[][] queries = new String[routes.size()][];
+    for (int i = 0; i < queries.length; i++) {
+      String[] route = routes.get(i);
+      String dest = random.nextBoolean() ? route[1]
+          : routes.get(random.nextInt(routes.size()))[1];
+      queries[i] = new String[] {route[0], dest, route[2]};
+    }
+
+    for (int k : new int[] {5, 20}) {
+      add("search.index", params("itineraries", Integer.toString(k)), () -> {
+        String[] q = queries[next[0]++ % queries.length];
+        int day = Integer.parseInt(q[2]);
+        List<Query.Flight> direct = index.directFlights(q[0], q[1], day, k);
+        List<Query.Itinerary> twoHop = TwoHopSearch.search(index, q[0], q[1], day,
+                                                           k - direct.size());
+        return direct.size() + twoHop.size();
+      });
+    }
+
+    // The full command path needs the application's tables
+    Query query;
+    try {
+      query = new Query();
+    } catch (SQLException e) {
+      System.err.println("# Cannot prepare application queries (" + e.getMessage()
+                         + "); skipping search.transaction and service.execute");
+      return;
+    }
+    for (boolean directOnly : new boolean[] {true, false}) {
+      add("search.transaction", params("direct", Boolean.toString(directOnly)), () -> {
+        String[] q = queries[next[0]++ % queries.length];
+        return query.search(q[0], q[1], directOnly, Integer.parseInt(q[2]), 10);
+      });
+    }
+    add("service.execute", params("command", "search"), () -> {
+      String[] q = queries[next[0]++ % queries.length];
+      return FlightService.execute(query, "search \"" + q[0] + "\" \"" + q[1] + "\" 0 " + q[2]
+                                          + " 10");
+    });
+    add("service.execute", params("command", "reservations"),
+        () -> FlightService.execute(query, "reservations"));
+  }
+
+  //
+  // Measurement
+  //
+
+  private static Result measure(Benchmark benchmark, int warmup, int iterations,
+                                long timeMillis) throws Exception {
+    for (int i = 0; i < warmup; i++) {
+      runIteration(benchmark.operation, timeMillis);
+    }
+    double[] samples = new double[Math.max(1, iterations)];
+    for (int i = 0; i < samples.length; i++) {
+      samples[i] = runIteration(benchmark.operation, timeMillis);
+    }
+    return new Result(benchmark, samples);
+  }
+
+  // Runs the operation repeatedly for about timeMillis; returns nanoseconds per operation.
+  private static double runIteration(Operation operation, long timeMillis) throws Exception {
+    long deadline = System.nanoTime() + timeMillis * 1_000_000L;
+    long start = System.nanoTime();
+    long ops = 0;
+    long now;
+    do {
+      sink = operation.run();
+      ops++;
+      now = System.nanoTime();
+    } while (now < deadline);
+    return (double) (now - start) / ops;
+  }
+
+  private static void writeJson(List<Result> results, PrintWriter out) {
+    out.println("[");
+    for (int r = 0; r < results.size(); r++) {
+      Result result = results.get(r);
+      out.println("  {");
+      out.println("    \"benchmark\" : " + quote("flightapp." + result.benchmark.name) + ",");
+      out.println("    \"mode\" : \"avgt\",");
+      out.println("    \"threads\" : 1,");
+      out.println("    \"measurementIterations\" : " + result.nanosPerOp.length + ",");
+      StringBuilder params = new StringBuilder();
+      for (Map.Entry<String, String> param : result.benchmark.params.entrySet()) {
+        if (params.length() > 0) {
+          params.append(", ");
+        }
+        params.append(quote(param.getKey())).append(" : ").append(quote(param.getValue()));
+      }
+      out.println("    \"params\" : {" + params + "},");
+      out.println("    \"primaryMetric\" : {");
+      out.println("      \"score\" : " + result.mean + ",");
+      out.println("      \"scoreError\" : " + result.error + ",");
+      out.println("      \"scoreUnit\" : \"ns/op\",");
+      StringBuilder raw = new StringBuilder();
+      for (double sample : result.nanosPerOp) {
+        if (raw.length() > 0) {
+          raw.append(", ");
+        }
+        raw.append(sample);
+      }
+      out.println("      \"rawData\" : [[" + raw + "]]");
+      out.println("    }");
+      out.println(r + 1 < results.size() ? "  }," : "  }");
+    }
+    out.println("]");
+  }
+
+  private static void writeCsv(List<Result> results, PrintWriter out) {
+    out.println("benchmark,params,mode,samples,score,score_error,unit");
+    for (Result result : results) {
+      StringBuilder params = new StringBuilder();
+      for (Map.Entry<String, String> param : result.benchmark.params.entrySet()) {
+        if (params.length() > 0) {
+          params.append(';');
+        }
+        params.append(param.getKey()).append('=').append(param.getValue());
+      }
+      out.printf("%s,%s,avgt,%d,%.3f,%.3f,ns/op%n", result.benchmark.name, params,
+                 result.nanosPerOp.length, result.mean, result.error);
+    }
+  }
+
+  private static String quote(String s) {
+    StringBuilder sb = new StringBuilder("\"");
+    for (char c : s.toCharArray()) {
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format("\\u%04x", (int) c));
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.append('"').toString();
+  }
+
+  //
+  // Synthetic data
+  //
+
+  private static final int CITIES = 60;
+  private static final int CARRIERS = 12;
+
+  private static Query.Flight randomFlight(int fid, Random random) {
+    int origin = random.nextInt(CITIES);
+    int dest = (origin + 1 + random.nextInt(CITIES - 1)) % CITIES;
+    return new Query.Flight(fid, 1 + random.nextInt(31), "C" + random.nextInt(CARRIERS),
+                            Integer.toString(100 + random.nextInt(9000)), cityName(origin),
+                            cityName(dest), 30 + random.nextInt(600), random.nextInt(20),
+                            50 + random.nextInt(950));
+  }
+
+  private static List<Query.Itinerary> randomItineraries(int size, Random random) {
+    List<Query.Itinerary> itineraries = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      Query.Flight first = randomFlight(1 + random.nextInt(size * 4), random);
+      Query.Flight second = random.nextInt(3) == 0 ? null
+          : randomFlight(1 + random.nextInt(size * 4), random);
+      itineraries.add(new Query.Itinerary(first, second));
+    }
+    return itineraries;
+  }
+
+  private static String cityName(int city) {
+    return "City " + city + " XY";
+  }
+
+  /**
+   * Create FLIGHTS (with the columns the application reads) if needed, and fill it with count
+   * synthetic flights if it is empty.
+   */
+  private static void seedFlights(int count) throws SQLException, IOException {
+    try (Connection conn = DBConnUtils.openConnection()) {
+      try (Statement stmt = conn.createStatement()) {
+        stmt.executeUpdate("CREATE TABLE FLIGHTS (fid INT PRIMARY KEY, day_of_month INT, "
+                           + "carrier_id VARCHAR(7), flight_num INT, origin_city VARCHAR(34), "
+                           + "dest_city VARCHAR(34), canceled INT, actual_time INT, "
+                           + "capacity INT, price INT)");
+      } catch (SQLException e) {
+        // Already exists
+      }
+
+      try (Statement stmt = conn.createStatement();
+           ResultSet rs = stmt.executeQuery("SELECT COUNT(*) AS n FROM FLIGHTS")) {
+        rs.next();
+        if (rs.getInt("n") > 0) {
+          return;
+        }
+      }
+
+      Random random = new Random(42);
+      conn.setAutoCommit(false);
+      try (PreparedStatement insert = conn.prepareStatement(
+          "INSERT INTO FLIGHTS (fid, day_of_month, carrier_id, flight_num, origin_city, "
+          + "dest_city, canceled, actual_time, capacity, price) "
+          + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+        for (int fid = 1; fid <= count; fid++) {
+          Query.Flight flight = randomFlight(fid, random);
+          insert.setInt(1, flight.fid);
+          insert.setInt(2, flight.dayOfMonth);
+          insert.setString(3, flight.carrierId);
+          insert.setInt(4, Integer.parseInt(flight.flightNum));
+          insert.setString(5, flight.originCity);
+          insert.setString(6, flight.destCity);
+          insert.setInt(7, random.nextInt(50) == 0 ? 1 : 0);
+          insert.setInt(8, flight.time);
+          insert.setInt(9, flight.capacity);
+          insert.setInt(10, flight.price);
+          insert.addBatch();
+          if (fid % 1000 == 0) {
+            insert.executeBatch();
+          }
+        }
+        insert.executeBatch();
+      }
+      conn.commit();
+      conn.setAutoCommit(true);
+    }
+    FlightIndex.invalidate();
+  }
+}
@@ -0,0 +1,418 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Books concurrent requests together, in one database transaction per batch (group commit).
+ *
+ * Used by the group booking mode ({@code flightapp.booking_mode=group}).  Sessions hand their
+ * bookings to a coordinator thread, which collects whatever arrives while the previous batch
+ * commits, waiting up to {@code flightapp.group_commit.window_micros} for more, up to
+ * {@code flightapp.group_commit.max_batch} bookings.  Each batch reads the same-day bookings
+ * and booked seats it needs, decides every booking in arrival order, and writes all of them with
+ * JDBC batches and a single commit, so a burst of bookings costs one log flush instead of one
+ * each.  Every booking still gets its own outcome.
+ *
+ * The batch runs at serializable isolation on a dedicated connection (not a pooled one, for the
+ * same reason as {@link ReservationIdAllocator}), so it stays correct next to bookings made
+ * directly in the database by other processes; a batch that fails with a retryable error is run
+ * again as a whole.
+ */
+public final class BookingCoordinator {
+  /**
+   * Outcome of {@link #book}: the user already has a reservation that day.
+   */
+  public static final int SAME_DAY = -1;
+
+  /**
+   * Outcome of {@link #book}: a flight of the itinerary is full.
+   */
+  public static final int NO_SEATS = -2;
+
+  private static final int MAX_ATTEMPTS = 5;
+
+  private static final String RESERVATIONS_ON_DAY_SQL =
+      "SELECT r.rid FROM {Reservations} AS r JOIN FLIGHTS AS f ON r.flight1_id = f.fid "
+      + "WHERE f.day_of_month = ? AND r.username = ?";
+  private static final String BOOKED_SEATS_SQL =
+      "SELECT booked FROM {FlightSeats} WHERE fid = ?";
+  private static final String COUNT_RESERVATIONS_SQL =
+      "SELECT COUNT(*) AS taken FROM {Reservations} WHERE flight1_id = ? OR flight2_id = ?";
+  private static final String INSERT_RESERVATION_SQL =
+      "INSERT INTO {Reservations} (rid, username, paid, flight1_id, flight2_id) "
+      + "VALUES (?, ?, 0, ?, ?)";
+  private static final String UPDATE_SEATS_SQL =
+      "UPDATE {FlightSeats} SET booked = ? WHERE fid = ?";
+  private static final String INSERT_SEATS_SQL =
+      "INSERT INTO {FlightSeats} (fid, booked) VALUES (?, ?)";
+
+  private static BookingCoordinator shared;
+
+  private final int maxBatch;
+  private final long windowNanos;
+  private final ReservationIdAllocator ridAllocator;
+  private final Dialect dialect;
+  private final SchemaManager schema;
+  private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+
+  // Dedicated connection of the coordinator thread, opened on first use
+  private Connection conn;
+
+  // Metrics; written by the coordinator thread only
+  private volatile long batches;
+  private volatile long bookings;
+  private volatile long retries;
+  private volatile long failedBatches;
+
+  /**
+   * A booking waiting for its batch.
+   */
+  private static final class Request {
+    final String username;
+    final int day;
+    final int fid1;
+    final int capacity1;
+    final int fid2;
+    final int capacity2;
+    final CompletableFuture<Integer> outcome = new CompletableFuture<>();
+    // Allocated once the booking first succeeds in a batch, and kept if the batch is retried;
+    // coordinator thread only
+    int rid;
+
+    Request(String username, int day, int fid1, int capacity1, int fid2, int capacity2) {
+      this.username = username;
+      this.day = day;
+      this.fid1 = fid1;
+      this.capacity1 = capacity1;
+      this.fid2 = fid2;
+      this.capacity2 = capacity2;
+    }
+  }
+
+  public BookingCoordinator(int maxBatch, long windowMicros, ReservationIdAllocator ridAllocator,
+                            Dialect dialect, SchemaManager schema) {
+    this.maxBatch = Math.max(1, maxBatch);
+    this.windowNanos = Math.max(0, windowMicros) * 1000;
+    this.ridAllocator = ridAllocator;
+    this.dialect = dialect;
+    this.schema = schema;
+    Thread coordinator = new Thread(this::run, "booking-coordinator");
+    coordinator.setDaemon(true);
+    coordinator.start();
+  }
+
+  /**
+   * Returns the process-wide coordinator, configured from dbconn.properties on first use.
+   */
+  public static synchronized BookingCoordinator shared() throws IOException {
+    if (shared == null) {
+      DBConfig config = DBConfig.get();
+      shared = new BookingCoordinator(config.getInt("flightapp.group_commit.max_batch", 64),
+                                      config.getInt("flightapp.group_commit.window_micros", 500),
+                                      ReservationIdAllocator.shared(), config.dialect,
+                                      SchemaManager.shared());
+    }
+    return shared;
+  }
+
+  /**
+   * The process-wide coordinator, or null if the group booking mode hasn't started it.
+   */
+  public static synchronized BookingCoordinator sharedIfStarted() {
+    return shared;
+  }
+
+  /**
+   * Book an itinerary for the user, with the next batch.
+   *
+   * @param fid2 the second flight, or 0 for a direct itinerary
+   *
+   * @return the new reservation ID, or {@link #SAME_DAY} or {@link #NO_SEATS}
+   *
+   * @throws SQLException if the batch failed
+   */
+  public int book(String username, int day, int fid1, int capacity1, int fid2, int capacity2)
+      throws SQLException {
+    Request request = new Request(username, day, fid1, capacity1, fid2, capacity2);
+    queue.add(request);
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return request.outcome.get();
+        } catch (InterruptedException e) {
+          // Give up only if the booking hasn't been taken into a batch; otherwise it may be
+          // committed, and the caller has to hear about it.
+          if (queue.remove(request)) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a booking batch", e);
+          }
+          interrupted = true;
+        }
+      }
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof SQLException) {
+        throw (SQLException) e.getCause();
+      }
+      throw new SQLException("Booking batch failed", e.getCause());
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    long b = batches;
+    return String.format("batches: %d bookings: %d avg batch: %.1f retries: %d failed: %d",
+                         b, bookings, b == 0 ? 0.0 : (double) bookings / b, retries,
+                         failedBatches);
+  }
+
+  private void run() {
+    List<Request> batch = new ArrayList<>(maxBatch);
+    while (true) {
+      try {
+        batch.add(queue.take());
+        queue.drainTo(batch, maxBatch - batch.size());
+        long deadline = System.nanoTime() + windowNanos;
+        while (batch.size() < maxBatch) {
+          long wait = deadline - System.nanoTime();
+          Request next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+          queue.drainTo(batch, maxBatch - batch.size());
+        }
+      } catch (InterruptedException e) {
+        return;
+      }
+
+      try {
+        int[] outcomes = bookWithRetries(batch);
+        for (int i = 0; i < batch.size(); i++) {
+          batch.get(i).outcome.complete(outcomes[i]);
+        }
+      } catch (SQLException | RuntimeException e) {
+        failedBatches++;
+        for (Request request : batch) {
+          request.outcome.completeExceptionally(e);
+        }
+      }
+      batch.clear();
+    }
+  }
+
+  private int[] bookWithRetries(List<Request> batch) throws SQLException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        int[] outcomes = bookBatch(batch);
+        batches++;
+        bookings += batch.size();
+        return outcomes;
+      } catch (SQLException e) {
+        if (!dialect.isRetryable(e) || attempt >= MAX_ATTEMPTS) {
+          throw e;
+        }
+        retries++;
+        try {
+          Thread.sleep(ThreadLocalRandom.current().nextLong(5L << attempt));
+        } catch (InterruptedException b) {
+          Thread.currentThread().interrupt();
+          throw e;
+        }
+      }
+    }
+  }
+
+  // Decide and write one batch, in one transaction.
+  private int[] bookBatch(List<Request> batch) throws SQLException {
+    if (conn == null) {
+      try {
+        conn = DBConnUtils.openConnection();
+      } catch (IOException e) {
+        throw new SQLException("Cannot read database configuration", e);
+      }
+    }
+
+    int[] outcomes = new int[batch.size()];
+    boolean anyBooked = false;
+    try {
+      conn.setAutoCommit(false);
+
+      // Booked seats per flight, and the flights that have no FlightSeats row yet
+      Map<Integer, Integer> booked = new HashMap<>();
+      Set<Integer> newCounters = new HashSet<>();
+      Set<Integer> changed = new HashSet<>();
+      // Users and days already booked, in the database or earlier in this batch
+      Set<String> bookedDays = new HashSet<>();
+      Set<String> checkedDays = new HashSet<>();
+
+      try (PreparedStatement onDay = conn.prepareStatement(schema.sql(RESERVATIONS_ON_DAY_SQL));
+           PreparedStatement seats = conn.prepareStatement(schema.sql(BOOKED_SEATS_SQL));
+           PreparedStatement count = conn.prepareStatement(schema.sql(COUNT_RESERVATIONS_SQL))) {
+        for (int i = 0; i < batch.size(); i++) {
+          Request request = batch.get(i);
+          String userDay = request.username + '\n' + request.day;
+          if (checkedDays.add(userDay) && hasReservationOnDay(onDay, request)) {
+            bookedDays.add(userDay);
+          }
+          if (bookedDays.contains(userDay)) {
+            outcomes[i] = SAME_DAY;
+            continue;
+          }
+
+          int taken1 = bookedSeats(seats, count, request.fid1, booked, newCounters);
+          int taken2 = request.fid2 == 0 ? 0
+              : bookedSeats(seats, count, request.fid2, booked, newCounters);
+          if (taken1 >= request.capacity1
+              || (request.fid2 != 0 && taken2 >= request.capacity2)) {
+            outcomes[i] = NO_SEATS;
+            continue;
+          }
+
+          booked.put(request.fid1, taken1 + 1);
+          changed.add(request.fid1);
+          if (request.fid2 != 0) {
+            booked.put(request.fid2, taken2 + 1);
+            changed.add(request.fid2);
+          }
+          bookedDays.add(userDay);
+          anyBooked = true;
+        }
+      }
+
+      // Reservation IDs only for the bookings that succeed, in batch order, and only once per
+      // booking however often the batch is retried
+      for (int i = 0; i < batch.size(); i++) {
+        if (outcomes[i] == 0) {
+          Request request = batch.get(i);
+          if (request.rid == 0) {
+            request.rid = ridAllocator.nextId();
+          }
+          outcomes[i] = request.rid;
+        }
+      }
+
+      if (anyBooked) {
+        writeBookings(batch, outcomes, booked, changed, newCounters);
+      }
+      conn.commit();
+      conn.setAutoCommit(true);
+      return outcomes;
+    } catch (SQLException | RuntimeException e) {
+      // None of the batch was booked; a retry reuses its reservation IDs.  Start over on a
+      // fresh connection next time.
+      try {
+        conn.rollback();
+        conn.close();
+      } catch (SQLException b) {}
+      conn = null;
+      throw e;
+    }
+  }
+
+  // Insert the batch's reservations and store the new seat counts of the flights they booked.
+  private void writeBookings(List<Request> batch, int[] outcomes, Map<Integer, Integer> booked,
+                             Set<Integer> changed, Set<Integer> newCounters)
+      throws SQLException {
+    try (PreparedStatement insert = conn.prepareStatement(schema.sql(INSERT_RESERVATION_SQL))) {
+      for (int i = 0; i < batch.size(); i++) {
+        if (outcomes[i] <= 0) {
+          continue;
+        }
+        Request request = batch.get(i);
+        insert.setInt(1, outcomes[i]);
+        insert.setString(2, request.username);
+        insert.setInt(3, request.fid1);
+        if (request.fid2 == 0) {
+          insert.setNull(4, Types.INTEGER);
+        } else {
+          insert.setInt(4, request.fid2);
+        }
+        insert.addBatch();
+      }
+      insert.executeBatch();
+    }
+
+    try (PreparedStatement update = conn.prepareStatement(schema.sql(UPDATE_SEATS_SQL));
+         PreparedStatement create = conn.prepareStatement(schema.sql(INSERT_SEATS_SQL))) {
+      boolean updates = false;
+      boolean creates = false;
+      for (int fid : changed) {
+        if (newCounters.contains(fid)) {
+          create.setInt(1, fid);
+          create.setInt(2, booked.get(fid));
+          create.addBatch();
+          creates = true;
+        } else {
+          update.setInt(1, booked.get(fid));
+          update.setInt(2, fid);
+          update.addBatch();
+          updates = true;
+        }
+      }
+      if (updates) {
+        update.executeBatch();
+      }
+      if (creates) {
+        create.executeBatch();
+      }
+    }
+  }
+
+  private static boolean hasReservationOnDay(PreparedStatement onDay, Request request)
+      throws SQLException {
+    onDay.setInt(1, request.day);
+    onDay.setString(2, request.username);
+    try (ResultSet rs = onDay.executeQuery()) {
+      return rs.next();
+    }
+  }
+
+  // Seats booked on the flight so far, read from the database once per batch.
+  private static int bookedSeats(PreparedStatement seats, PreparedStatement count, int fid,
+                                 Map<Integer, Integer> booked, Set<Integer> newCounters)
+      throws SQLException {
+    Integer taken = booked.get(fid);
+    if (taken != null) {
+      return taken;
+    }
+    seats.setInt(1, fid);
+    try (ResultSet rs = seats.executeQuery()) {
+      if (rs.next()) {
+        taken = rs.getInt("booked");
+      }
+    }
+    if (taken == null) {
+      // First booking through a counter: start from the reservations made without one
+      count.setInt(1, fid);
+      count.setInt(2, fid);
+      try (ResultSet rs = count.executeQuery()) {
+        rs.next();
+        taken = rs.getInt("taken");
+      }
+      newCounters.add(fid);
+    }
+    booked.put(fid, taken);
+    return taken;
+  }
+}
@@ -0,0 +1,607 @@
+package flightapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead journal of the bookings made by the inventory booking mode, written to the
+ * Reservations table in the background.
+ *
+ * Each booking is appended to a memory-mapped file before book returns, so it survives a crash
+ * of the process; {@code flightapp.journal.sync=true} also forces it to disk, to survive a crash
+ * of the machine.  A flusher thread inserts the journaled bookings into the Reservations table and
+ * counts their seats in the FlightSeats table, in batches of whatever accumulated during the
+ * previous batch, on a dedicated connection (not a pooled one, for the same reason as
+ * {@link ReservationIdAllocator}).  The journal's header records how far the database has
+ * caught up; on startup, any booking past that point is written to the database again, skipping
+ * those already there, before the journal is used.
+ *
+ * Commands that read a user's reservations call {@link #awaitFlushed(String)} first, so they
+ * always see the user's own bookings.
+ *
+ * File layout: a header (magic, flushed offset, sequence number of the record there), then
+ * records of [length, sequence, rid, day, fid1, fid2, username length, username, crc32].  The
+ * length is written last, so a record torn by a crash reads as the end of the journal.  When the
+ * file is full and every record has been flushed, writing starts over after the header; records
+ * left from the previous pass are told apart by their sequence numbers.
+ */
+public final class BookingJournal {
+  private static final int MAGIC = 0x464a524e;
+  private static final int FLUSHED_OFFSET = 8;
+  private static final int FLUSHED_SEQUENCE = 16;
+  private static final int HEADER_BYTES = 32;
+  // sequence, rid, day, fid1, fid2, username length
+  private static final int FIXED_BODY_BYTES = 8 + 4 * 4 + 2;
+
+  private static final String INSERT_RESERVATION_SQL =
+      "INSERT INTO {Reservations} (rid, username, paid, flight1_id, flight2_id) "
+      + "VALUES (?, ?, 0, ?, ?)";
+  private static final String RESERVATION_EXISTS_SQL =
+      "SELECT rid FROM {Reservations} WHERE rid = ?";
+  private static final String ADD_SEATS_SQL =
+      "UPDATE {FlightSeats} SET booked = booked + ? WHERE fid = ?";
+  // Counts the reservations just inserted too
+  private static final String CREATE_SEATS_SQL =
+      "INSERT INTO {FlightSeats} (fid, booked) "
+      + "SELECT ?, COUNT(*) FROM {Reservations} WHERE flight1_id = ? OR flight2_id = ?";
+
+  private static BookingJournal shared;
+
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final boolean sync;
+  private final long awaitMillis;
+  private final SchemaManager schema;
+
+  // Where the next record goes, and its sequence number; guarded by this
+  private int writeOffset;
+  private long nextSequence;
+
+  // Records are written outside the lock, possibly out of order, and published in order: the
+  // first sequence number not yet published and where its record starts, the records written
+  // past it, and how many appends are between claiming and publishing; guarded by this
+  private long publishedSequence;
+  private int publishedOffset;
+  private final Map<Long, Booking> written = new HashMap<>();
+  private int writing;
+
+  // Bookings not yet in the database, oldest first, and the first sequence number that isn't;
+  // guarded by this
+  private final ArrayDeque<Booking> pending = new ArrayDeque<>();
+  private long flushedSequence;
+
+  // One past the last booking read back from the journal on startup
+  private long recoveredSequence;
+
+  // Each user's pending bookings, read without holding this
+  private final ConcurrentHashMap<String, UserBookings> byUser = new ConcurrentHashMap<>();
+
+  // Held while a batch is written to the database, so that clear() doesn't race with it
+  private final Object flushLock = new Object();
+
+  // Dedicated connection of the flusher, opened on first use
+  private Connection conn;
+
+  // Serializes check-then-book for a user (one same-day booking) within this process
+  private final Object[] userLocks = new Object[256];
+
+  // Metrics
+  private long flushedBookings;
+  private long batches;
+  private long flushErrors;
+
+  /**
+   * A user's pending bookings: the latest one's sequence number, and how many there are per day.
+   * Guarded by itself; changed only while also holding the journal.
+   */
+  private static final class UserBookings {
+    long latest;
+    final Map<Integer, Integer> days = new HashMap<>();
+  }
+
+  /**
+   * A journaled booking.
+   */
+  static final class Booking {
+    final long sequence;
+    final int rid;
+    final String username;
+    final int day;
+    final int fid1;
+    final int fid2;
+    // Offsets of this booking's record and just past it
+    final int start;
+    final int end;
+    // Read back from the journal on startup; the database may already have it
+    final boolean recovered;
+
+    Booking(long sequence, int rid, String username, int day, int fid1, int fid2, int start,
+            int end, boolean recovered) {
+      this.sequence = sequence;
+      this.rid = rid;
+      this.username = username;
+      this.day = day;
+      this.fid1 = fid1;
+      this.fid2 = fid2;
+      this.start = start;
+      this.end = end;
+      this.recovered = recovered;
+    }
+  }
+
+  private BookingJournal(Path path, int sizeBytes, boolean sync, long awaitMillis,
+                         SchemaManager schema) throws IOException {
+    this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                    StandardOpenOption.WRITE);
+    this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                              Math.max(sizeBytes, (int) Math.min(channel.size(),
+                                                                 Integer.MAX_VALUE)));
+    this.sync = sync;
+    this.awaitMillis = awaitMillis;
+    this.schema = schema;
+    for (int i = 0; i < userLocks.length; i++) {
+      userLocks[i] = new Object();
+    }
+    recover();
+  }
+
+  /**
+   * Returns the process-wide journal, opened (and recovered) from dbconn.properties on first
+   * use, once every booking recovered from the journal is in the database.
+   */
+  public static synchronized BookingJournal shared() throws IOException, SQLException {
+    if (shared == null) {
+      DBConfig config = DBConfig.get();
+      BookingJournal journal = new BookingJournal(
+          Paths.get(config.getProperty("flightapp.journal.path", "flightapp-bookings.journal")),
+          config.getInt("flightapp.journal.size_mb", 64) << 20,
+          config.getBoolean("flightapp.journal.sync", false),
+          config.getInt("flightapp.journal.await_millis", 5000),
+          SchemaManager.shared());
+      journal.startFlusher();
+      shared = journal;
+    }
+    shared.awaitRecovered();
+    return shared;
+  }
+
+  /**
+   * The process-wide journal, or null if the inventory booking mode hasn't opened it.
+   */
+  public static synchronized BookingJournal sharedIfOpen() {
+    return shared;
+  }
+
+  /**
+   * Wait for the process-wide journal, if there is one, to write everything to the database.
+   */
+  public static void flushShared() throws SQLException {
+    BookingJournal journal = sharedIfOpen();
+    if (journal != null) {
+      journal.awaitAllFlushed();
+    }
+  }
+
+  /**
+   * The lock that serializes a user's bookings in this process.
+   */
+  Object lockFor(String username) {
+    return userLocks[(username.hashCode() & 0x7fffffff) % userLocks.length];
+  }
+
+  /**
+   * Journal a booking.  Once this returns, the booking survives a crash and will reach the
+   * database.
+   *
+   * Only claiming the record's place and publishing it hold the journal's lock; the record is
+   * encoded, checksummed and (with {@code flightapp.journal.sync}) forced without it.
+   *
+   * @param fid2 the second flight, or 0 for a direct itinerary
+   */
+  public void append(int rid, String username, int day, int fid1, int fid2)
+      throws SQLException {
+    byte[] name = username.getBytes(StandardCharsets.UTF_8);
+    int bodyBytes = FIXED_BODY_BYTES + name.length;
+    int recordBytes = 4 + bodyBytes + 4;
+    if (HEADER_BYTES + recordBytes > buffer.capacity()) {
+      throw new SQLException("Booking does not fit in the journal");
+    }
+
+    int start;
+    long sequence;
+    synchronized (this) {
+      while (writeOffset + recordBytes > buffer.capacity()) {
+        wrap();
+      }
+      start = writeOffset;
+      sequence = nextSequence++;
+      writeOffset = start + recordBytes;
+      writing++;
+    }
+
+    ByteBuffer body = buffer.duplicate();
+    body.position(start + 4);
+    body.putLong(sequence).putInt(rid).putInt(day).putInt(fid1).putInt(fid2)
+        .putShort((short) name.length).put(name);
+    body.putInt(checksum(start + 4, bodyBytes));
+    // Written last: the record exists from here on
+    buffer.putInt(start, bodyBytes);
+    if (sync) {
+      buffer.force(start, recordBytes);
+    }
+
+    publish(new Booking(sequence, rid, username, day, fid1, fid2, start, start + recordBytes,
+                        false));
+  }
+
+  // Queue the written booking, with any written after it, once those before it are queued; and
+  // wait for that, since recovery stops at the first record that isn't complete.
+  private synchronized void publish(Booking booking) {
+    written.put(booking.sequence, booking);
+    Booking next;
+    while ((next = written.remove(publishedSequence)) != null) {
+      pending.addLast(next);
+      track(next);
+      publishedSequence++;
+      publishedOffset = next.end;
+    }
+    writing--;
+    notifyAll();
+
+    // Only ever a wait for other appends' memory writes, so not given up on interrupt
+    boolean interrupted = false;
+    while (publishedSequence <= booking.sequence) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // Index a pending booking by user (holding this).
+  private void track(Booking booking) {
+    UserBookings bookings = byUser.computeIfAbsent(booking.username, u -> new UserBookings());
+    synchronized (bookings) {
+      bookings.latest = booking.sequence;
+      bookings.days.merge(booking.day, 1, Integer::sum);
+    }
+  }
+
+  // Drop a booking now in the database from the index (holding this).
+  private void untrack(Booking booking) {
+    UserBookings bookings = byUser.get(booking.username);
+    if (bookings == null) {
+      return;
+    }
+    synchronized (bookings) {
+      if (bookings.days.merge(booking.day, -1, Integer::sum) == 0) {
+        bookings.days.remove(booking.day);
+      }
+      if (bookings.days.isEmpty()) {
+        byUser.remove(booking.username, bookings);
+      }
+    }
+  }
+
+  /**
+   * Whether the user has a booking on the given day that is not in the database yet.
+   */
+  public boolean hasPendingOnDay(String username, int day) {
+    UserBookings bookings = byUser.get(username);
+    if (bookings == null) {
+      return false;
+    }
+    synchronized (bookings) {
+      return bookings.days.containsKey(day);
+    }
+  }
+
+  /**
+   * Wait until all of the user's bookings are in the database.
+   *
+   * @throws SQLException if they are not there within flightapp.journal.await_millis
+   */
+  public void awaitFlushed(String username) throws SQLException {
+    UserBookings bookings = byUser.get(username);
+    if (bookings == null) {
+      return;
+    }
+    long latest;
+    synchronized (bookings) {
+      latest = bookings.latest;
+    }
+    synchronized (this) {
+      awaitSequence(latest + 1);
+    }
+  }
+
+  // Wait until the bookings recovered on startup are in the database.
+  private synchronized void awaitRecovered() throws SQLException {
+    awaitSequence(recoveredSequence);
+  }
+
+  /**
+   * Wait until every journaled booking is in the database.
+   */
+  public synchronized void awaitAllFlushed() throws SQLException {
+    awaitSequence(nextSequence);
+  }
+
+  /**
+   * Drop every booking not yet in the database and empty the journal.  Used when the
+   * reservations table is cleared.
+   */
+  public void clear() {
+    synchronized (flushLock) {
+      synchronized (this) {
+        // Let appends in progress finish writing before their space is reused
+        boolean interrupted = false;
+        while (writing > 0) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+        pending.clear();
+        byUser.clear();
+        flushedSequence = nextSequence;
+        writeOffset = HEADER_BYTES;
+        publishedOffset = HEADER_BYTES;
+        writeHeader();
+        notifyAll();
+      }
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "pending: " + pending.size() + " flushed: " + flushedBookings + " batches: " + batches
+        + " errors: " + flushErrors;
+  }
+
+  // Wait (holding this) until every booking before sequence is in the database.
+  private void awaitSequence(long sequence) throws SQLException {
+    long deadline = System.currentTimeMillis() + awaitMillis;
+    while (flushedSequence < sequence) {
+      long wait = deadline - System.currentTimeMillis();
+      if (wait <= 0) {
+        throw new SQLException("Bookings not yet written to the database");
+      }
+      try {
+        wait(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("Interrupted waiting for the booking journal", e);
+      }
+    }
+  }
+
+  // Start writing over the journal from the beginning, once all of it is in the database
+  // (unless another append did so while this one waited).
+  private void wrap() throws SQLException {
+    int offset = writeOffset;
+    awaitSequence(nextSequence);
+    if (writeOffset != offset) {
+      return;
+    }
+    writeOffset = HEADER_BYTES;
+    publishedOffset = HEADER_BYTES;
+    writeHeader();
+    if (sync) {
+      buffer.force(0, HEADER_BYTES);
+    }
+  }
+
+  // Header: the offset and sequence number of the first booking not yet in the database.
+  private void writeHeader() {
+    buffer.putLong(FLUSHED_SEQUENCE, flushedSequence);
+    buffer.putLong(FLUSHED_OFFSET,
+                   pending.isEmpty() ? publishedOffset : pending.peekFirst().start);
+  }
+
+  private int checksum(int offset, int length) {
+    CRC32 crc = new CRC32();
+    ByteBuffer slice = buffer.duplicate();
+    slice.position(offset).limit(offset + length);
+    crc.update(slice);
+    return (int) crc.getValue();
+  }
+
+  // Read the bookings past the flushed point back into pending.
+  private void recover() throws IOException {
+    int magic = buffer.getInt(0);
+    if (magic != MAGIC) {
+      if (magic != 0) {
+        throw new IOException("Not a booking journal");
+      }
+      buffer.putInt(0, MAGIC);
+      writeOffset = HEADER_BYTES;
+      publishedOffset = HEADER_BYTES;
+      writeHeader();
+      return;
+    }
+
+    int offset = (int) Math.max(HEADER_BYTES, buffer.getLong(FLUSHED_OFFSET));
+    long sequence = buffer.getLong(FLUSHED_SEQUENCE);
+    flushedSequence = sequence;
+    while (offset + 4 + FIXED_BODY_BYTES + 4 <= buffer.capacity()) {
+      int bodyBytes = buffer.getInt(offset);
+      int recordBytes = 4 + bodyBytes + 4;
+      if (bodyBytes < FIXED_BODY_BYTES || offset + recordBytes > buffer.capacity()
+          || buffer.getLong(offset + 4) != sequence
+          || buffer.getInt(offset + 4 + bodyBytes) != checksum(offset + 4, bodyBytes)) {
+        break;
+      }
+      ByteBuffer body = buffer.duplicate();
+      body.position(offset + 4 + 8);
+      int rid = body.getInt();
+      int day = body.getInt();
+      int fid1 = body.getInt();
+      int fid2 = body.getInt();
+      byte[] name = new byte[body.getShort()];
+      body.get(name);
+      String username = new String(name, StandardCharsets.UTF_8);
+
+      Booking booking = new Booking(sequence, rid, username, day, fid1, fid2, offset,
+                                    offset + recordBytes, true);
+      pending.addLast(booking);
+      track(booking);
+      sequence++;
+      offset += recordBytes;
+    }
+    nextSequence = sequence;
+    publishedSequence = sequence;
+    recoveredSequence = sequence;
+    writeOffset = offset;
+    publishedOffset = offset;
+  }
+
+  private void startFlusher() {
+    Thread flusher = new Thread(this::runFlusher, "booking-journal-flusher");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  private void runFlusher() {
+    long backoffMillis = 10;
+    while (true) {
+      try {
+        List<Booking> batch;
+        synchronized (this) {
+          while (pending.isEmpty()) {
+            wait();
+          }
+        }
+        synchronized (flushLock) {
+          synchronized (this) {
+            batch = new ArrayList<>(pending);
+          }
+          if (batch.isEmpty()) {
+            continue;
+          }
+          try {
+            writeToDatabase(batch);
+          } catch (SQLException e) {
+            e.printStackTrace();
+            synchronized (this) {
+              flushErrors++;
+            }
+            Thread.sleep(backoffMillis);
+            backoffMillis = Math.min(backoffMillis * 2, 1000);
+            continue;
+          }
+          backoffMillis = 10;
+          markFlushed(batch);
+        }
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  private synchronized void markFlushed(List<Booking> batch) {
+    for (Booking booking : batch) {
+      pending.removeFirst();
+      untrack(booking);
+    }
+    flushedSequence = batch.get(batch.size() - 1).sequence + 1;
+    writeHeader();
+    flushedBookings += batch.size();
+    batches++;
+    notifyAll();
+  }
+
+  // Insert the batch's reservations and count their seats, in one transaction.
+  private void writeToDatabase(List<Booking> batch) throws SQLException {
+    if (conn == null) {
+      try {
+        conn = DBConnUtils.openConnection();
+      } catch (IOException e) {
+        throw new SQLException("Cannot read database configuration", e);
+      }
+    }
+
+    try {
+      conn.setAutoCommit(false);
+      Map<Integer, Integer> seats = new HashMap<>();
+      try (PreparedStatement insert = conn.prepareStatement(schema.sql(INSERT_RESERVATION_SQL));
+           PreparedStatement exists = conn.prepareStatement(schema.sql(RESERVATION_EXISTS_SQL))) {
+        for (Booking booking : batch) {
+          if (booking.recovered && reservationExists(exists, booking.rid)) {
+            continue;
+          }
+          insert.setInt(1, booking.rid);
+          insert.setString(2, booking.username);
+          insert.setInt(3, booking.fid1);
+          if (booking.fid2 == 0) {
+            insert.setNull(4, Types.INTEGER);
+          } else {
+            insert.setInt(4, booking.fid2);
+            seats.merge(booking.fid2, 1, Integer::sum);
+          }
+          seats.merge(booking.fid1, 1, Integer::sum);
+          insert.addBatch();
+        }
+        insert.executeBatch();
+      }
+
+      try (PreparedStatement add = conn.prepareStatement(schema.sql(ADD_SEATS_SQL));
+           PreparedStatement create = conn.prepareStatement(schema.sql(CREATE_SEATS_SQL))) {
+        for (Map.Entry<Integer, Integer> entry : seats.entrySet()) {
+          add.setInt(1, entry.getValue());
+          add.setInt(2, entry.getKey());
+          if (add.executeUpdate() == 0) {
+            create.setInt(1, entry.getKey());
+            create.setInt(2, entry.getKey());
+            create.setInt(3, entry.getKey());
+            create.executeUpdate();
+          }
+        }
+      }
+      conn.commit();
+      conn.setAutoCommit(true);
+    } catch (SQLException e) {
+      // Start over on a fresh connection next time
+      try {
+        conn.rollback();
+        conn.close();
+      } catch (SQLException b) {}
+      conn = null;
+      throw e;
+    }
+  }
+
+  private static boolean reservationExists(PreparedStatement exists, int rid)
+      throws SQLException {
+    exists.setInt(1, rid);
+    try (ResultSet rs = exists.executeQuery()) {
+      return rs.next();
+    }
+  }
+}
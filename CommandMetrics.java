@@ -0,0 +1,156 @@
+package flightapp;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency and outcome metrics of one user command, shared by every query in the process.
+ *
+ * Recorded by the command wrappers in {@link QueryAbstract}.  Each command's metrics are
+ * registered with the platform MBean server as {@code flightapp:type=Command,name=<command>},
+ * and {@link #report()} renders all of them for the {@code stats} command.
+ */
+public final class CommandMetrics implements CommandMetricsMBean {
+  private static final Map<String, CommandMetrics> ALL = new ConcurrentHashMap<>();
+
+  // Commands in the order they are reported
+  private static final String[] COMMANDS =
+      {"create", "login", "search", "book", "pay", "reservations"};
+
+  private final String name;
+  private final LatencyHistogram latency = new LatencyHistogram();
+  private final LongAdder successes = new LongAdder();
+  private final LongAdder businessFailures = new LongAdder();
+  private final LongAdder sqlErrors = new LongAdder();
+  private final LongAdder deadlockRetries = new LongAdder();
+
+  private CommandMetrics(String name) {
+    this.name = name;
+  }
+
+  /**
+   * The metrics of the named command, created (and registered with JMX) on first use.
+   */
+  static CommandMetrics forCommand(String name) {
+    CommandMetrics metrics = ALL.get(name);
+    if (metrics == null) {
+      metrics = ALL.computeIfAbsent(name, CommandMetrics::new);
+      metrics.register();
+    }
+    return metrics;
+  }
+
+  private void register() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName("flightapp:type=Command,name=" + name);
+      synchronized (CommandMetrics.class) {
+        if (!server.isRegistered(objectName)) {
+          server.registerMBean(this, objectName);
+        }
+      }
+    } catch (JMException e) {
+      // Metrics remain available through the stats command
+    }
+  }
+
+  /**
+   * Record one completed command.
+   *
+   * @param succeeded whether the response reports success (only used without a SQL error)
+   * @param sqlError whether a database error made the command fail
+   */
+  void record(long nanos, boolean succeeded, boolean sqlError) {
+    latency.record(nanos);
+    if (sqlError) {
+      sqlErrors.increment();
+    } else if (succeeded) {
+      successes.increment();
+    } else {
+      businessFailures.increment();
+    }
+  }
+
+  void recordRetry() {
+    deadlockRetries.increment();
+  }
+
+  @Override
+  public long getCount() {
+    return latency.getCount();
+  }
+
+  @Override
+  public long getSuccesses() {
+    return successes.sum();
+  }
+
+  @Override
+  public long getBusinessFailures() {
+    return businessFailures.sum();
+  }
+
+  @Override
+  public long getSqlErrors() {
+    return sqlErrors.sum();
+  }
+
+  @Override
+  public long getDeadlockRetries() {
+    return deadlockRetries.sum();
+  }
+
+  @Override
+  public double getMeanMillis() {
+    return latency.getMeanMillis();
+  }
+
+  @Override
+  public double getP50Millis() {
+    return latency.getPercentileMillis(0.50);
+  }
+
+  @Override
+  public double getP99Millis() {
+    return latency.getPercentileMillis(0.99);
+  }
+
+  @Override
+  public double getP999Millis() {
+    return latency.getPercentileMillis(0.999);
+  }
+
+  @Override
+  public double getMaxMillis() {
+    return latency.getMaxMillis();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s: count: %d ok: %d failed: %d sql errors: %d retries: %d "
+                         + "mean: %.2f ms p50: %.2f ms p99: %.2f ms p999: %.2f ms max: %.2f ms",
+                         name, getCount(), getSuccesses(), getBusinessFailures(), getSqlErrors(),
+                         getDeadlockRetries(), getMeanMillis(), getP50Millis(), getP99Millis(),
+                         getP999Millis(), getMaxMillis());
+  }
+
+  /**
+   * Every command's metrics, one line per command.
+   */
+  public static String report() {
+    StringBuilder sb = new StringBuilder();
+    for (String command : COMMANDS) {
+      CommandMetrics metrics = ALL.get(command);
+      if (metrics != null) {
+        sb.append(metrics).append('\n');
+      }
+    }
+    return sb.toString();
+  }
+}
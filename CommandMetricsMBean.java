@@ -0,0 +1,26 @@
+package flightapp;
+
+/**
+ * JMX view of one command's {@link CommandMetrics}.
+ */
+public interface CommandMetricsMBean {
+  long getCount();
+
+  long getSuccesses();
+
+  long getBusinessFailures();
+
+  long getSqlErrors();
+
+  long getDeadlockRetries();
+
+  double getMeanMillis();
+
+  double getP50Millis();
+
+  double getP99Millis();
+
+  double getP999Millis();
+
+  double getMaxMillis();
+}
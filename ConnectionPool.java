@@ -0,0 +1,233 @@
+package flightapp;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-size pool of database connections shared by every {@code Query} in the process.
+ *
+ * Connections are opened up front (pre-warmed) so a new session does not pay the full
+ * TCP/TLS/login handshake, and are lent out with {@link #lease()} and handed back with
+ * {@link #release(Connection)}.  A connection that has been idle for longer than the configured
+ * threshold is validated with {@link Connection#isValid(int)} before being lent out again.
+ */
+public class ConnectionPool {
+  private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+  private final DBConfig config;
+
+  // Idle connections, most recently used first
+  private final LinkedBlockingDeque<IdleConnection> idle = new LinkedBlockingDeque<>();
+
+  // One permit per connection the pool is allowed to have leased out
+  private final Semaphore permits;
+
+  private final AtomicInteger active = new AtomicInteger();
+  private final AtomicInteger total = new AtomicInteger();
+  private final LongAdder leases = new LongAdder();
+  private final LongAdder waitNanos = new LongAdder();
+  private final LongAdder timeouts = new LongAdder();
+  private final LongAdder created = new LongAdder();
+  private final LongAdder discarded = new LongAdder();
+
+  private volatile boolean closed;
+
+  public ConnectionPool(DBConfig config) throws SQLException {
+    this.config = config;
+    this.permits = new Semaphore(config.poolMaxSize, true);
+
+    // Pre-warm the pool
+    int initial = Math.min(config.poolInitialSize, config.poolMaxSize);
+    try {
+      for (int i = 0; i < initial; i++) {
+        idle.offerLast(new IdleConnection(openConnection()));
+      }
+    } catch (SQLException | RuntimeException e) {
+      // Close the connections opened so far
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Borrow a connection, waiting up to the configured timeout for one to become free.
+   *
+   * @throws SQLException if the pool is exhausted for the whole wait, or a new connection
+   *                      cannot be opened
+   */
+  public Connection lease() throws SQLException {
+    if (closed) {
+      throw new SQLException("Connection pool is closed");
+    }
+
+    long start = System.nanoTime();
+    boolean acquired;
+    try {
+      acquired = permits.tryAcquire(config.poolWaitMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a connection", e);
+    }
+    waitNanos.add(System.nanoTime() - start);
+    if (!acquired) {
+      timeouts.increment();
+      throw new SQLException("Timed out after " + config.poolWaitMillis
+                             + "ms waiting for a database connection");
+    }
+
+    try {
+      Connection conn = takeValidIdle();
+      if (conn == null) {
+        conn = openConnection();
+      }
+      active.incrementAndGet();
+      leases.increment();
+      return conn;
+    } catch (SQLException | RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Return a leased connection to the pool.  Any open transaction is rolled back and the
+   * connection is reset to the pool defaults; connections that fail to reset are discarded.
+   */
+  public void release(Connection conn) {
+    if (conn == null) {
+      return;
+    }
+    active.decrementAndGet();
+    try {
+      if (closed || conn.isClosed()) {
+        discard(conn);
+        return;
+      }
+      if (!conn.getAutoCommit()) {
+        conn.rollback();
+        conn.setAutoCommit(true);
+      }
+      if (conn.getTransactionIsolation() != Connection.TRANSACTION_SERIALIZABLE) {
+        conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+      }
+      idle.offerFirst(new IdleConnection(conn));
+    } catch (SQLException e) {
+      discard(conn);
+    } finally {
+      permits.release();
+    }
+  }
+
+  /**
+   * Close all idle connections and refuse further leases.  Leased connections are closed as
+   * they are released.
+   */
+  public void close() {
+    closed = true;
+    IdleConnection entry;
+    while ((entry = idle.pollFirst()) != null) {
+      discard(entry.conn);
+    }
+  }
+
+  public Stats stats() {
+    return new Stats(active.get(), idle.size(), total.get(), leases.sum(), waitNanos.sum(),
+                     timeouts.sum(), created.sum(), discarded.sum());
+  }
+
+  // Pop idle connections until one passes validation (or none are left).
+  private Connection takeValidIdle() {
+    long staleNanos = TimeUnit.MILLISECONDS.toNanos(config.poolValidateIdleMillis);
+    IdleConnection entry;
+    while ((entry = idle.pollFirst()) != null) {
+      // Only connections that have sat idle for a while are worth a validation round trip
+      if (System.nanoTime() - entry.idleSince < staleNanos) {
+        return entry.conn;
+      }
+      try {
+        if (entry.conn.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+          return entry.conn;
+        }
+      } catch (SQLException e) {
+        // fall through and discard
+      }
+      discard(entry.conn);
+    }
+    return null;
+  }
+
+  private Connection openConnection() throws SQLException {
+    Connection conn = DriverManager.getConnection(config.jdbcUrl);
+
+    // By default, automatically commit after each statement
+    conn.setAutoCommit(true);
+
+    // By default, set the transaction isolation level to serializable
+    conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+
+    total.incrementAndGet();
+    created.increment();
+    return conn;
+  }
+
+  private void discard(Connection conn) {
+    total.decrementAndGet();
+    discarded.increment();
+    try {
+      conn.close();
+    } catch (SQLException e) {}
+  }
+
+  private static class IdleConnection {
+    final Connection conn;
+    final long idleSince;
+
+    IdleConnection(Connection conn) {
+      this.conn = conn;
+      this.idleSince = System.nanoTime();
+    }
+  }
+
+  /**
+   * A point-in-time snapshot of pool metrics.
+   */
+  public static class Stats {
+    public final int active;
+    public final int idle;
+    public final int total;
+    public final long leases;
+    public final long totalWaitNanos;
+    public final long timeouts;
+    public final long created;
+    public final long discarded;
+
+    Stats(int active, int idle, int total, long leases, long totalWaitNanos, long timeouts,
+          long created, long discarded) {
+      this.active = active;
+      this.idle = idle;
+      this.total = total;
+      this.leases = leases;
+      this.totalWaitNanos = totalWaitNanos;
+      this.timeouts = timeouts;
+      this.created = created;
+      this.discarded = discarded;
+    }
+
+    public double averageWaitMillis() {
+      return leases == 0 ? 0.0 : totalWaitNanos / 1e6 / leases;
+    }
+
+    @Override
+    public String toString() {
+      return "active: " + active + " idle: " + idle + " total: " + total + " leases: " + leases
+          + " avg wait ms: " + String.format("%.3f", averageWaitMillis()) + " timeouts: "
+          + timeouts + " created: " + created + " discarded: " + discarded;
+    }
+  }
+}
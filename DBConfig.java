@@ -0,0 +1,146 @@
+package flightapp;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * An immutable, parsed view of dbconn.properties.
+ *
+ * The file is read once per process; every connection, pool and query shares the same instance.
+ * Tests and tools may install their own configuration (for example, one pointing at an embedded
+ * database) with {@link #install(DBConfig)} before the first connection is opened.
+ */
+public final class DBConfig {
+  private static final String CONFIG_FILE = "dbconn.properties";
+  private static final String SUFFIX_PROPERTY = "flightapp.tablename_suffix";
+
+  private static volatile DBConfig instance;
+
+  private final Properties props;
+
+  // Connection parameters
+  public final String serverUrl;
+  public final String databaseName;
+  public final String username;
+  public final String password;
+  public final String jdbcUrl;
+  public final Dialect dialect;
+  public final String tableSuffix;
+
+  // Connection pool parameters
+  public final int poolInitialSize;
+  public final int poolMaxSize;
+  public final long poolWaitMillis;
+  public final long poolValidateIdleMillis;
+
+  private DBConfig(Properties props) {
+    this.props = props;
+
+    this.serverUrl = props.getProperty("flightapp.server_url");
+    this.databaseName = props.getProperty("flightapp.database_name");
+    this.username = props.getProperty("flightapp.username");
+    this.password = props.getProperty("flightapp.password");
+
+    // An explicit JDBC URL overrides the one the dialect builds from the settings above.
+    String url = props.getProperty("flightapp.jdbc_url");
+    this.dialect = Dialect.select(props.getProperty("flightapp.dialect"), url);
+    if (url == null || url.isEmpty()) {
+      url = dialect.buildUrl(this);
+    }
+    this.jdbcUrl = url;
+
+    String suffix = props.getProperty(SUFFIX_PROPERTY);
+    if (suffix == null || suffix.isEmpty()) {
+      suffix = System.getProperty(SUFFIX_PROPERTY);
+    }
+    this.tableSuffix = (suffix == null || suffix.isEmpty()) ? null : suffix;
+
+    this.poolInitialSize = getInt("flightapp.pool.initial_size", 2);
+    this.poolMaxSize = Math.max(1, getInt("flightapp.pool.max_size", 16));
+    this.poolWaitMillis = getInt("flightapp.pool.wait_millis", 30000);
+    this.poolValidateIdleMillis = getInt("flightapp.pool.validate_idle_millis", 5000);
+  }
+
+  /**
+   * Returns the process-wide configuration, loading dbconn.properties on first use.
+   */
+  public static DBConfig get() throws IOException {
+    DBConfig config = instance;
+    if (config == null) {
+      synchronized (DBConfig.class) {
+        config = instance;
+        if (config == null) {
+          config = load(CONFIG_FILE);
+          instance = config;
+        }
+      }
+    }
+    return config;
+  }
+
+  /**
+   * Replaces the process-wide configuration. Must be called before the connection pool is
+   * created for the new settings to take effect.
+   */
+  public static void install(DBConfig config) {
+    instance = config;
+  }
+
+  /**
+   * Parses the given properties file.
+   */
+  public static DBConfig load(String path) throws IOException {
+    Properties props = new Properties();
+    try (FileInputStream in = new FileInputStream(path)) {
+      props.load(in);
+    }
+    return new DBConfig(props);
+  }
+
+  /**
+   * Builds a configuration from already-loaded properties. The properties are copied.
+   */
+  public static DBConfig fromProperties(Properties props) {
+    Properties copy = new Properties();
+    copy.putAll(props);
+    return new DBConfig(copy);
+  }
+
+  /**
+   * A copy of this configuration with one property changed, e.g. the JDBC URL of another shard.
+   */
+  public DBConfig with(String name, String value) {
+    Properties copy = new Properties();
+    copy.putAll(props);
+    copy.setProperty(name, value);
+    return new DBConfig(copy);
+  }
+
+  /**
+   * Raw access to a property that has no dedicated field.
+   */
+  public String getProperty(String name, String defaultValue) {
+    return props.getProperty(name, defaultValue);
+  }
+
+  public int getInt(String name, int defaultValue) {
+    String value = props.getProperty(name);
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid integer for " + name + ": " + value, e);
+    }
+  }
+
+  public boolean getBoolean(String name, boolean defaultValue) {
+    String value = props.getProperty(name);
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+    return Boolean.parseBoolean(value.trim());
+  }
+}
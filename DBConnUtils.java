@@ -1,36 +1,25 @@
 package flightapp;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
-import java.util.Properties;
 
 /**
  * A collection of utility methods to help with parsing dbconn.properties.
  */
 public class DBConnUtils {
+  private static ConnectionPool pool;
+
   /**
-   * Open and return a connection using dbconn.properties file
+   * Open and return a new, unpooled connection using dbconn.properties file
    *
    * @throws SQLException
    * @throws IOException
    */
   public static Connection openConnection() throws SQLException, IOException {
     // Connect to the database with the provided connection configuration
-    Properties configProps = new Properties();
-    configProps.load(new FileInputStream("dbconn.properties"));
-
-    String serverURL = configProps.getProperty("flightapp.server_url");
-    String dbName = configProps.getProperty("flightapp.database_name");
-    String adminName = configProps.getProperty("flightapp.username");
-    String password = configProps.getProperty("flightapp.password");
-
-    String connectionUrl =
-        String.format("jdbc:sqlserver://%s:1433;databaseName=%s;user=%s;password=%s", 
-                      serverURL, dbName, adminName, password);
-    Connection conn = DriverManager.getConnection(connectionUrl);
+    Connection conn = DriverManager.getConnection(DBConfig.get().jdbcUrl);
 
     // By default, automatically commit after each statement
     conn.setAutoCommit(true);
@@ -41,6 +30,32 @@ public class DBConnUtils {
     return conn;
   }
 
+  /**
+   * Get the process-wide connection pool, creating (and pre-warming) it on first use.
+   *
+   * @throws SQLException
+   * @throws IOException
+   */
+  public static synchronized ConnectionPool getPool() throws SQLException, IOException {
+    if (pool == null) {
+      pool = new ConnectionPool(DBConfig.get());
+    }
+    return pool;
+  }
+
+  /**
+   * Close the process-wide connection pool, if one was created, and the pools of the other
+   * shards and of the seat ledger.
+   */
+  public static synchronized void closePool() {
+    if (pool != null) {
+      pool.close();
+      pool = null;
+    }
+    ShardRouter.closeShared();
+    SeatLedger.closeShared();
+  }
+
   /**
    * Get the table suffix
    *
@@ -48,21 +63,6 @@ public class DBConnUtils {
    * @throws IOException
    */
   public static String getTableSuffix() throws SQLException, IOException {
-    // Connect to the database with the provided connection configuration
-    Properties configProps = new Properties();
-    configProps.load(new FileInputStream("dbconn.properties"));
-
-    final String PROPERTY_NAME = "flightapp.tablename_suffix";
-
-    String suffix = configProps.getProperty(PROPERTY_NAME);
-    if (suffix == null || suffix.isEmpty()) {
-      suffix = System.getProperty(PROPERTY_NAME);
-      if (suffix != null && !suffix.isEmpty()) {
-        return suffix;
-      }
-      return null;
-    } else {
-      return suffix;
-    }
+    return DBConfig.get().tableSuffix;
   }
 }
@@ -0,0 +1,266 @@
+package flightapp;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * The SQL differences between the database engines the application can run against.
+ *
+ * SQL Server is the default.  H2 runs embedded in the application's own process (no network
+ * round trip per statement), for single-node deployments, benchmarks and tests.  Choose one
+ * with {@code flightapp.dialect} in dbconn.properties; without it, the dialect follows the
+ * scheme of {@code flightapp.jdbc_url}.
+ */
+public abstract class Dialect {
+  public static final Dialect SQL_SERVER = new SqlServer();
+  public static final Dialect H2 = new H2();
+
+  // SQL Server's snapshot isolation level (SQLServerConnection.TRANSACTION_SNAPSHOT)
+  static final int TRANSACTION_SNAPSHOT = 0x1000;
+
+  private final String name;
+
+  private Dialect(String name) {
+    this.name = name;
+  }
+
+  /**
+   * The dialect named by flightapp.dialect, or else the one matching the JDBC URL.
+   */
+  static Dialect select(String dialectName, String jdbcUrl) {
+    if (dialectName != null && !dialectName.trim().isEmpty()) {
+      for (Dialect dialect : new Dialect[] {SQL_SERVER, H2}) {
+        if (dialect.name.equalsIgnoreCase(dialectName.trim())) {
+          return dialect;
+        }
+      }
+      throw new IllegalArgumentException("Unknown dialect: " + dialectName);
+    }
+    if (jdbcUrl != null && jdbcUrl.startsWith("jdbc:h2:")) {
+      return H2;
+    }
+    return SQL_SERVER;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * The JDBC URL to use when dbconn.properties doesn't give one.
+   */
+  abstract String buildUrl(DBConfig config);
+
+  /**
+   * A query returning at most a parameterized number of rows: selectList and rest (FROM
+   * through ORDER BY) put together with the dialect's row limit.  Where the limit parameter
+   * goes is given by {@link #limitIsLastParameter()}.
+   */
+  abstract String selectFirst(String selectList, String rest);
+
+  /**
+   * Whether the row limit of {@link #selectFirst(String, String)} is bound after the query's
+   * other parameters rather than before them.
+   */
+  abstract boolean limitIsLastParameter();
+
+  /**
+   * A query returning the connection's open transaction count as column tran_count, or null if
+   * the engine has none (the transaction state is then checked on the client).
+   */
+  abstract String tranCountSql();
+
+  /**
+   * The isolation level for read-only commands when flightapp.isolation.read is auto: one
+   * where readers neither take nor wait for locks, if the database allows it.
+   */
+  abstract int readIsolation(Connection conn) throws SQLException;
+
+  /**
+   * DDL of an index over keys that also carries the include columns, so that queries reading
+   * only those columns never touch the table.
+   */
+  abstract String createIndexSql(String name, String table, String keys, String include);
+
+  /**
+   * The engine's plan for a query (one without parameters), as text that names the indexes it
+   * uses.
+   */
+  abstract String explain(Connection conn, String sql) throws SQLException;
+
+  /**
+   * Whether pay can run as a single server-side batch (see Query); otherwise it runs as
+   * separate statements in one transaction.
+   */
+  abstract boolean supportsPayBatch();
+
+  /**
+   * Whether a failed transaction may succeed if simply run again (deadlock victim, lock
+   * timeout, serialization failure).
+   */
+  boolean isRetryable(SQLException e) {
+    // SQL standard serialization failure / deadlock
+    String state = e.getSQLState();
+    return state != null && (state.equals("40001") || state.equals("40P01"));
+  }
+
+  /**
+   * Whether the error is a primary key or unique constraint violation.
+   */
+  boolean isDuplicateKey(SQLException e) {
+    // SQL standard integrity constraint violation
+    String state = e.getSQLState();
+    return state != null && (state.equals("23000") || state.equals("23505"));
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+
+  private static final class SqlServer extends Dialect {
+    SqlServer() {
+      super("sqlserver");
+    }
+
+    @Override
+    String buildUrl(DBConfig config) {
+      return String.format("jdbc:sqlserver://%s:1433;databaseName=%s;user=%s;password=%s",
+                           config.serverUrl, config.databaseName, config.username,
+                           config.password);
+    }
+
+    @Override
+    String selectFirst(String selectList, String rest) {
+      return "SELECT TOP(?) " + selectList + " " + rest;
+    }
+
+    @Override
+    boolean limitIsLastParameter() {
+      return false;
+    }
+
+    @Override
+    String tranCountSql() {
+      return "SELECT @@TRANCOUNT AS tran_count";
+    }
+
+    @Override
+    int readIsolation(Connection conn) throws SQLException {
+      // Snapshot needs ALLOW_SNAPSHOT_ISOLATION on the database; otherwise read committed,
+      // which is row versioning as well if READ_COMMITTED_SNAPSHOT is on.
+      try (Statement statement = conn.createStatement();
+           ResultSet rs = statement.executeQuery(
+               "SELECT snapshot_isolation_state FROM sys.databases WHERE database_id = DB_ID()")) {
+        if (rs.next() && rs.getInt(1) == 1) {
+          return TRANSACTION_SNAPSHOT;
+        }
+      }
+      return Connection.TRANSACTION_READ_COMMITTED;
+    }
+
+    @Override
+    String createIndexSql(String name, String table, String keys, String include) {
+      return "CREATE INDEX " + name + " ON " + table + " (" + keys + ") INCLUDE (" + include
+          + ")";
+    }
+
+    @Override
+    String explain(Connection conn, String sql) throws SQLException {
+      try (Statement statement = conn.createStatement()) {
+        statement.execute("SET SHOWPLAN_XML ON");
+        try (ResultSet rs = statement.executeQuery(sql)) {
+          rs.next();
+          return rs.getString(1);
+        } finally {
+          statement.execute("SET SHOWPLAN_XML OFF");
+        }
+      }
+    }
+
+    @Override
+    boolean supportsPayBatch() {
+      return true;
+    }
+
+    @Override
+    boolean isRetryable(SQLException e) {
+      switch (e.getErrorCode()) {
+        case 1205: // chosen as deadlock victim
+        case 1222: // lock request timeout
+        case 3960: // snapshot isolation update conflict
+          return true;
+        default:
+          return super.isRetryable(e);
+      }
+    }
+  }
+
+  private static final class H2 extends Dialect {
+    H2() {
+      super("h2");
+    }
+
+    @Override
+    String buildUrl(DBConfig config) {
+      // Case-insensitive strings, as with SQL Server's default collation
+      return "jdbc:h2:" + config.getProperty("flightapp.h2.path", "./flightapp")
+          + ";IGNORECASE=TRUE";
+    }
+
+    @Override
+    String selectFirst(String selectList, String rest) {
+      return "SELECT " + selectList + " " + rest + " FETCH FIRST ? ROWS ONLY";
+    }
+
+    @Override
+    boolean limitIsLastParameter() {
+      return true;
+    }
+
+    @Override
+    String tranCountSql() {
+      return null;
+    }
+
+    @Override
+    int readIsolation(Connection conn) {
+      // MVStore reads committed row versions without locking
+      return Connection.TRANSACTION_READ_COMMITTED;
+    }
+
+    @Override
+    String createIndexSql(String name, String table, String keys, String include) {
+      // No INCLUDE; trailing key columns cover the same queries
+      return "CREATE INDEX " + name + " ON " + table + " (" + keys + ", " + include + ")";
+    }
+
+    @Override
+    String explain(Connection conn, String sql) throws SQLException {
+      try (Statement statement = conn.createStatement();
+           ResultSet rs = statement.executeQuery("EXPLAIN " + sql)) {
+        rs.next();
+        return rs.getString(1);
+      }
+    }
+
+    @Override
+    boolean supportsPayBatch() {
+      return false;
+    }
+
+    @Override
+    boolean isRetryable(SQLException e) {
+      switch (e.getErrorCode()) {
+        case 40001: // deadlock
+        case 50200: // lock timeout
+        case 90131: // concurrent update (MVStore)
+          return true;
+        default:
+          return super.isRetryable(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,233 @@
+package flightapp;
+
+import java.io.IOException;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A process-wide cache of flight metadata keyed by fid.
+ *
+ * Flights almost never change, so every session shares one cache instead of querying FLIGHTS by
+ * fid.  Entries live in an open-addressing hash table over primitive int keys (linear probing),
+ * which avoids boxing every lookup into an {@code Integer}.  Each entry holds the
+ * {@code Flight} and its rendered string.  Readers don't block: lookups are optimistic and only
+ * fall back to a read lock if they race with a writer.  The cache holds at most
+ * {@code maxEntries} flights; once full it is emptied and refills from use.
+ */
+public final class FlightCache {
+  // fid 0 is never a valid flight, so it marks empty slots
+  private static final int EMPTY = 0;
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private static FlightCache shared;
+
+  private final int maxEntries;
+  private final StampedLock lock = new StampedLock();
+
+  // Replaced wholesale when resized or cleared; guarded by lock
+  private Table table = new Table(INITIAL_CAPACITY);
+  private int size;
+
+  public FlightCache(int maxEntries) {
+    this.maxEntries = Math.max(1, maxEntries);
+  }
+
+  /**
+   * Returns the shared cache, configured from dbconn.properties on first use.
+   */
+  public static synchronized FlightCache shared() throws IOException {
+    if (shared == null) {
+      shared = new FlightCache(DBConfig.get().getInt("flightapp.flight_cache.max_entries",
+                                                     200000));
+    }
+    return shared;
+  }
+
+  /**
+   * Empties the shared cache, if it has been created.
+   */
+  public static synchronized void invalidateShared() {
+    if (shared != null) {
+      shared.clear();
+    }
+  }
+
+  /**
+   * Returns the cached flight, or null on a miss.
+   */
+  public Query.Flight get(int fid) {
+    if (fid == EMPTY) {
+      return null;
+    }
+    long stamp = lock.tryOptimisticRead();
+    Table t = table;
+    int slot = t.probe(fid);
+    Query.Flight flight = slot < 0 ? null : t.flights[slot];
+    if (lock.validate(stamp)) {
+      return flight;
+    }
+
+    // Raced with a writer; retry under the read lock
+    stamp = lock.readLock();
+    try {
+      slot = table.probe(fid);
+      return slot < 0 ? null : table.flights[slot];
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * Returns the cached rendering of the flight, or null on a miss.
+   */
+  public String getRendered(int fid) {
+    if (fid == EMPTY) {
+      return null;
+    }
+    long stamp = lock.tryOptimisticRead();
+    Table t = table;
+    int slot = t.probe(fid);
+    String rendered = slot < 0 ? null : t.rendered[slot];
+    if (lock.validate(stamp)) {
+      return rendered;
+    }
+
+    // Raced with a writer; retry under the read lock
+    stamp = lock.readLock();
+    try {
+      slot = table.probe(fid);
+      return slot < 0 ? null : table.rendered[slot];
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * Cache a flight (and its rendering) by fid.
+   */
+  public void put(Query.Flight flight) {
+    if (flight.fid == EMPTY) {
+      return;
+    }
+    String rendered = flight.toString();
+    long stamp = lock.writeLock();
+    try {
+      insert(flight, rendered);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Bulk-load every flight of the index that fits under the size bound.
+   */
+  public void preload(FlightIndex index) {
+    long stamp = lock.writeLock();
+    try {
+      int count = Math.min(index.size(), maxEntries);
+      for (int row = 0; row < count; row++) {
+        Query.Flight flight = index.toFlight(row);
+        insert(flight, flight.toString());
+      }
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  public void clear() {
+    long stamp = lock.writeLock();
+    try {
+      table = new Table(INITIAL_CAPACITY);
+      size = 0;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  public int size() {
+    long stamp = lock.readLock();
+    try {
+      return size;
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  // Must hold the write lock.
+  private void insert(Query.Flight flight, String rendered) {
+    int slot = table.probe(flight.fid);
+    if (slot >= 0) {
+      table.flights[slot] = flight;
+      table.rendered[slot] = rendered;
+      return;
+    }
+    if (size >= maxEntries) {
+      table = new Table(INITIAL_CAPACITY);
+      size = 0;
+    } else if ((size + 1) * 4 > table.keys.length * 3) {
+      // Keep the load factor under 3/4
+      table = table.resize(table.keys.length * 2);
+    }
+    table.insertNew(flight.fid, flight, rendered);
+    size++;
+  }
+
+  /**
+   * One open-addressing table.  Capacity is a power of two.
+   */
+  private static final class Table {
+    final int[] keys;
+    final Query.Flight[] flights;
+    final String[] rendered;
+    final int mask;
+
+    Table(int capacity) {
+      keys = new int[capacity];
+      flights = new Query.Flight[capacity];
+      rendered = new String[capacity];
+      mask = capacity - 1;
+    }
+
+    // Returns the slot holding fid, or -1
+    int probe(int fid) {
+      int slot = mix(fid) & mask;
+      while (true) {
+        int key = keys[slot];
+        if (key == fid) {
+          return slot;
+        }
+        if (key == EMPTY) {
+          return -1;
+        }
+        slot = (slot + 1) & mask;
+      }
+    }
+
+    void insertNew(int fid, Query.Flight flight, String text) {
+      int slot = mix(fid) & mask;
+      while (keys[slot] != EMPTY) {
+        slot = (slot + 1) & mask;
+      }
+      flights[slot] = flight;
+      rendered[slot] = text;
+      keys[slot] = fid;
+    }
+
+    Table resize(int capacity) {
+      Table bigger = new Table(capacity);
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] != EMPTY) {
+          bigger.insertNew(keys[i], flights[i], rendered[i]);
+        }
+      }
+      return bigger;
+    }
+
+    private static int mix(int key) {
+      // Spread sequential fids across the table (Murmur3 finalizer)
+      int h = key * 0x85ebca6b;
+      h ^= h >>> 13;
+      h *= 0xc2b2ae35;
+      return h ^ (h >>> 16);
+    }
+  }
+}
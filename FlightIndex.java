@@ -0,0 +1,443 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A read-only, in-memory columnar copy of the non-canceled rows of FLIGHTS.
+ *
+ * Each column is a primitive array indexed by row; cities and carriers are dictionary-encoded
+ * into int ids.  Rows are sorted by (origin, dest, day, actual_time, fid), so every
+ * (origin, dest, day) route is a contiguous, already time-ordered run of rows that is found with
+ * a binary search over the distinct route keys.  One instance is shared by the whole process.
+ */
+public final class FlightIndex {
+  private static final String LOAD_SQL =
+      "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, "
+      + "capacity, price FROM FLIGHTS WHERE canceled = 0";
+
+  // City ids must fit in 24 bits and days in 5 bits to pack a route key into a long
+  private static final int MAX_CITIES = 1 << 24;
+
+  private static volatile FlightIndex instance;
+
+  // Columns, one entry per row
+  final int[] fid;
+  final int[] day;
+  final int[] carrier;
+  final int[] flightNum;
+  final int[] origin;
+  final int[] dest;
+  final int[] time;
+  final int[] capacity;
+  final int[] price;
+
+  // Dictionaries
+  final String[] cityNames;
+  final String[] carrierNames;
+  private final Map<String, Integer> cityIds;
+
+  // Distinct route keys, sorted; rows of route i are [routeStart[i], routeStart[i + 1])
+  private final long[] routeKeys;
+  private final int[] routeStart;
+
+  // Per-day adjacency: rows leaving each (origin, day), ordered by (actual_time, fid).  The
+  // rows of group i are outboundRows[outboundStart[i], outboundStart[i + 1]).
+  private final long[] outboundKeys;
+  private final int[] outboundStart;
+  private final int[] outboundRows;
+
+  // Shortest flight arriving at each (dest, day)
+  private final long[] inboundKeys;
+  private final int[] inboundMinTime;
+
+  private final long loadMillis;
+
+  private FlightIndex(Columns c, long loadMillis) {
+    this.loadMillis = loadMillis;
+    this.cityNames = c.cities.toArray(new String[0]);
+    this.carrierNames = c.carriers.toArray(new String[0]);
+    this.cityIds = new HashMap<>();
+    for (int i = 0; i < cityNames.length; i++) {
+      cityIds.put(normalize(cityNames[i]), i);
+    }
+
+    int n = c.size;
+    int[] order = new int[n];
+    for (int i = 0; i < n; i++) {
+      order[i] = i;
+    }
+    final int[] o = c.origin, d = c.dest, dy = c.day, tm = c.time, id = c.fid;
+    IntSort.sort(order, (a, b) -> {
+      int cmp = Integer.compare(o[a], o[b]);
+      if (cmp == 0) cmp = Integer.compare(d[a], d[b]);
+      if (cmp == 0) cmp = Integer.compare(dy[a], dy[b]);
+      if (cmp == 0) cmp = Integer.compare(tm[a], tm[b]);
+      if (cmp == 0) cmp = Integer.compare(id[a], id[b]);
+      return cmp;
+    });
+
+    this.fid = permute(c.fid, order);
+    this.day = permute(c.day, order);
+    this.carrier = permute(c.carrier, order);
+    this.flightNum = permute(c.flightNum, order);
+    this.origin = permute(c.origin, order);
+    this.dest = permute(c.dest, order);
+    this.time = permute(c.time, order);
+    this.capacity = permute(c.capacity, order);
+    this.price = permute(c.price, order);
+
+    // Collect the distinct routes
+    long[] keys = new long[n];
+    int[] starts = new int[n + 1];
+    int routes = 0;
+    for (int row = 0; row < n; row++) {
+      long key = routeKey(origin[row], dest[row], day[row]);
+      if (routes == 0 || keys[routes - 1] != key) {
+        keys[routes] = key;
+        starts[routes] = row;
+        routes++;
+      }
+    }
+    starts[routes] = n;
+    this.routeKeys = Arrays.copyOf(keys, routes);
+    this.routeStart = Arrays.copyOf(starts, routes + 1);
+
+    // Outbound adjacency, ordered by (origin, day, time, fid)
+    int[] out = new int[n];
+    for (int i = 0; i < n; i++) {
+      out[i] = i;
+    }
+    IntSort.sort(out, (a, b) -> {
+      int cmp = Integer.compare(origin[a], origin[b]);
+      if (cmp == 0) cmp = Integer.compare(day[a], day[b]);
+      if (cmp == 0) cmp = Integer.compare(time[a], time[b]);
+      if (cmp == 0) cmp = Integer.compare(fid[a], fid[b]);
+      return cmp;
+    });
+    int groups = 0;
+    for (int i = 0; i < n; i++) {
+      long key = dayKey(origin[out[i]], day[out[i]]);
+      if (groups == 0 || keys[groups - 1] != key) {
+        keys[groups] = key;
+        starts[groups] = i;
+        groups++;
+      }
+    }
+    starts[groups] = n;
+    this.outboundRows = out;
+    this.outboundKeys = Arrays.copyOf(keys, groups);
+    this.outboundStart = Arrays.copyOf(starts, groups + 1);
+
+    // Minimum arrival time per (dest, day); the route runs are already time-ordered, so only
+    // their first rows need to be considered
+    int[] arrivals = new int[routes];
+    for (int i = 0; i < routes; i++) {
+      arrivals[i] = routeStart[i];
+    }
+    IntSort.sort(arrivals, (a, b) -> {
+      int cmp = Integer.compare(dest[a], dest[b]);
+      if (cmp == 0) cmp = Integer.compare(day[a], day[b]);
+      if (cmp == 0) cmp = Integer.compare(time[a], time[b]);
+      return cmp;
+    });
+    int[] minTimes = new int[routes];
+    groups = 0;
+    for (int i = 0; i < routes; i++) {
+      long key = dayKey(dest[arrivals[i]], day[arrivals[i]]);
+      if (groups == 0 || keys[groups - 1] != key) {
+        keys[groups] = key;
+        minTimes[groups] = time[arrivals[i]];
+        groups++;
+      }
+    }
+    this.inboundKeys = Arrays.copyOf(keys, groups);
+    this.inboundMinTime = Arrays.copyOf(minTimes, groups);
+  }
+
+  /**
+   * Returns the shared index, loading it from FLIGHTS over the given connection on first use.
+   */
+  public static FlightIndex get(Connection conn) throws SQLException {
+    FlightIndex index = instance;
+    if (index == null) {
+      synchronized (FlightIndex.class) {
+        index = instance;
+        if (index == null) {
+          index = load(conn);
+          instance = index;
+          if (preloadFlightCache()) {
+            try {
+              FlightCache.shared().preload(index);
+            } catch (IOException e) {
+              throw new SQLException("Cannot read database configuration", e);
+            }
+          }
+        }
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Drops the shared index so that the next {@link #get(Connection)} reloads FLIGHTS.  Call
+   * whenever flight data changes; cached search results are dropped as well.
+   */
+  public static synchronized void invalidate() {
+    instance = null;
+    SearchCache.invalidateShared();
+    FlightCache.invalidateShared();
+  }
+
+  private static boolean preloadFlightCache() throws SQLException {
+    try {
+      return DBConfig.get().getBoolean("flightapp.flight_cache.preload", false);
+    } catch (IOException e) {
+      throw new SQLException("Cannot read database configuration", e);
+    }
+  }
+
+  /**
+   * Reads every non-canceled flight into a new index.
+   */
+  public static FlightIndex load(Connection conn) throws SQLException {
+    long start = System.currentTimeMillis();
+    Columns columns = new Columns();
+    try (Statement stmt = conn.createStatement()) {
+      stmt.setFetchSize(10000);
+      try (ResultSet rs = stmt.executeQuery(LOAD_SQL)) {
+        while (rs.next()) {
+          columns.add(rs.getInt("fid"), rs.getInt("day_of_month"), rs.getString("carrier_id"),
+                      rs.getInt("flight_num"), rs.getString("origin_city"),
+                      rs.getString("dest_city"), rs.getInt("actual_time"),
+                      rs.getInt("capacity"), rs.getInt("price"));
+        }
+      }
+    }
+    return new FlightIndex(columns, System.currentTimeMillis() - start);
+  }
+
+  /**
+   * Returns up to {@code limit} direct flights from origin to dest on the given day, ordered by
+   * (actual_time, fid), exactly as the direct-flight SQL query does.  City names are matched
+   * case-insensitively (as SQL Server's default collation does) but reported as given.
+   */
+  public List<Query.Flight> directFlights(String originCity, String destCity, int dayOfMonth,
+                                          int limit) {
+    List<Query.Flight> flights = new ArrayList<>();
+    int route = findRoute(originCity, destCity, dayOfMonth);
+    if (route < 0) {
+      return flights;
+    }
+    int end = Math.min(routeStart[route + 1], routeStart[route] + Math.max(limit, 0));
+    for (int row = routeStart[route]; row < end; row++) {
+      flights.add(toFlight(row, originCity, destCity));
+    }
+    return flights;
+  }
+
+  /**
+   * Returns the route number for (origin, dest, day), or -1 if there are no such flights.
+   */
+  int findRoute(String originCity, String destCity, int dayOfMonth) {
+    Integer o = cityIds.get(normalize(originCity));
+    Integer d = cityIds.get(normalize(destCity));
+    if (o == null || d == null) {
+      return -1;
+    }
+    return findRoute(o, d, dayOfMonth);
+  }
+
+  int findRoute(int originId, int destId, int dayOfMonth) {
+    if (dayOfMonth < 0 || dayOfMonth > 31) {
+      return -1;
+    }
+    int route = Arrays.binarySearch(routeKeys, routeKey(originId, destId, dayOfMonth));
+    return route < 0 ? -1 : route;
+  }
+
+  int routeStart(int route) {
+    return routeStart[route];
+  }
+
+  int routeEnd(int route) {
+    return routeStart[route + 1];
+  }
+
+  /**
+   * Returns the group of flights leaving the city on the given day, or -1 if there are none.
+   * The rows of the group are {@code outboundRow(i)} for i in
+   * [outboundStart(group), outboundEnd(group)).
+   */
+  int findOutbound(int originId, int dayOfMonth) {
+    if (dayOfMonth < 0 || dayOfMonth > 31) {
+      return -1;
+    }
+    int group = Arrays.binarySearch(outboundKeys, dayKey(originId, dayOfMonth));
+    return group < 0 ? -1 : group;
+  }
+
+  int outboundStart(int group) {
+    return outboundStart[group];
+  }
+
+  int outboundEnd(int group) {
+    return outboundStart[group + 1];
+  }
+
+  int outboundRow(int i) {
+    return outboundRows[i];
+  }
+
+  /**
+   * Returns the shortest actual_time of any flight arriving at the city on the given day, or -1
+   * if there is none.
+   */
+  int minInboundTime(int destId, int dayOfMonth) {
+    if (dayOfMonth < 0 || dayOfMonth > 31) {
+      return -1;
+    }
+    int group = Arrays.binarySearch(inboundKeys, dayKey(destId, dayOfMonth));
+    return group < 0 ? -1 : inboundMinTime[group];
+  }
+
+  /**
+   * Returns the city's dictionary id, or -1 if no non-canceled flight touches it.
+   */
+  int cityId(String city) {
+    Integer id = cityIds.get(normalize(city));
+    return id == null ? -1 : id;
+  }
+
+  /**
+   * Materialize a row as a {@code Flight}, reporting the given names for its endpoints.
+   */
+  Query.Flight toFlight(int row, String originCity, String destCity) {
+    return new Query.Flight(fid[row], day[row], carrierNames[carrier[row]],
+                            Integer.toString(flightNum[row]), originCity, destCity, time[row],
+                            capacity[row], price[row]);
+  }
+
+  Query.Flight toFlight(int row) {
+    return toFlight(row, cityNames[origin[row]], cityNames[dest[row]]);
+  }
+
+  public int size() {
+    return fid.length;
+  }
+
+  /**
+   * Approximate heap footprint of the index in bytes.
+   */
+  public long footprintBytes() {
+    long bytes = 10L * 4 * fid.length;
+    bytes += 8L * routeKeys.length + 4L * routeStart.length;
+    bytes += 8L * outboundKeys.length + 4L * outboundStart.length;
+    bytes += 12L * inboundKeys.length;
+    for (String city : cityNames) {
+      // String header + backing array, and a HashMap entry for the lookup key
+      bytes += 40 + city.length() + 32 + 40 + city.length();
+    }
+    for (String carrierName : carrierNames) {
+      bytes += 40 + carrierName.length();
+    }
+    return bytes;
+  }
+
+  @Override
+  public String toString() {
+    return "flights: " + size() + " routes: " + routeKeys.length + " cities: "
+        + cityNames.length + " carriers: " + carrierNames.length + " footprint: "
+        + (footprintBytes() / 1024) + " KiB load ms: " + loadMillis;
+  }
+
+  private static long routeKey(int originId, int destId, int dayOfMonth) {
+    return ((long) originId << 29) | ((long) destId << 5) | dayOfMonth;
+  }
+
+  private static long dayKey(int cityId, int dayOfMonth) {
+    return ((long) cityId << 5) | dayOfMonth;
+  }
+
+  static String normalize(String city) {
+    return city.trim().toLowerCase(Locale.ROOT);
+  }
+
+  private static int[] permute(int[] column, int[] order) {
+    int[] result = new int[order.length];
+    for (int i = 0; i < order.length; i++) {
+      result[i] = column[order[i]];
+    }
+    return result;
+  }
+
+  /**
+   * Growable columns used while loading.
+   */
+  private static class Columns {
+    int size;
+    int[] fid = new int[1024];
+    int[] day = new int[1024];
+    int[] carrier = new int[1024];
+    int[] flightNum = new int[1024];
+    int[] origin = new int[1024];
+    int[] dest = new int[1024];
+    int[] time = new int[1024];
+    int[] capacity = new int[1024];
+    int[] price = new int[1024];
+
+    final List<String> cities = new ArrayList<>();
+    final List<String> carriers = new ArrayList<>();
+    private final Map<String, Integer> cityIds = new HashMap<>();
+    private final Map<String, Integer> carrierIds = new HashMap<>();
+
+    void add(int id, int dayOfMonth, String carrierId, int number, String originCity,
+             String destCity, int actualTime, int cap, int cost) {
+      if (size == fid.length) {
+        int newLength = size * 2;
+        fid = Arrays.copyOf(fid, newLength);
+        day = Arrays.copyOf(day, newLength);
+        carrier = Arrays.copyOf(carrier, newLength);
+        flightNum = Arrays.copyOf(flightNum, newLength);
+        origin = Arrays.copyOf(origin, newLength);
+        dest = Arrays.copyOf(dest, newLength);
+        time = Arrays.copyOf(time, newLength);
+        capacity = Arrays.copyOf(capacity, newLength);
+        price = Arrays.copyOf(price, newLength);
+      }
+      fid[size] = id;
+      day[size] = dayOfMonth;
+      carrier[size] = encode(carrierId, carriers, carrierIds, carrierId);
+      flightNum[size] = number;
+      origin[size] = encode(originCity, cities, cityIds, normalize(originCity));
+      dest[size] = encode(destCity, cities, cityIds, normalize(destCity));
+      time[size] = actualTime;
+      capacity[size] = cap;
+      price[size] = cost;
+      size++;
+    }
+
+    private static int encode(String value, List<String> names, Map<String, Integer> ids,
+                              String key) {
+      Integer id = ids.get(key);
+      if (id == null) {
+        if (names.size() >= MAX_CITIES) {
+          throw new IllegalStateException("Too many distinct values to index");
+        }
+        id = names.size();
+        names.add(value);
+        ids.put(key, id);
+      }
+      return id;
+    }
+  }
+}
@@ -0,0 +1,283 @@
+package flightapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Multi-session network front end for the Flights application.
+ *
+ * A single selector thread accepts clients and reads their commands, one per line, using the
+ * same line protocol as the REPL.  Complete commands are run through
+ * {@link FlightService#execute(QueryAbstract, String)} on a small worker pool; each worker
+ * borrows a {@code Query} (and so a pooled database connection) for the duration of one command
+ * and points it at the client's own {@link Session}.  Commands from one client are executed in
+ * order, one at a time.  Every response is terminated by a newline.
+ */
+public class FlightServer {
+  private static final int READ_BUFFER_BYTES = 4096;
+  private static final int MAX_LINE_BYTES = 8192;
+
+  private final int port;
+  private final int workers;
+
+  private final BlockingQueue<QueryAbstract> queries;
+  private final ExecutorService executor;
+  private final Queue<Client> pendingWrites = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger openSessions = new AtomicInteger();
+
+  private Selector selector;
+  private volatile boolean running;
+
+  public FlightServer(int port, int workers) {
+    this.port = port;
+    this.workers = workers;
+    this.queries = new ArrayBlockingQueue<>(workers);
+    this.executor = Executors.newFixedThreadPool(workers);
+  }
+
+  /**
+   * Bind to the port and serve clients until {@link #stop()} is called.
+   */
+  public void run() throws IOException, SQLException {
+    for (int i = 0; i < workers; i++) {
+      queries.add(new Query());
+    }
+
+    selector = Selector.open();
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.bind(new InetSocketAddress(port));
+      server.configureBlocking(false);
+      server.register(selector, SelectionKey.OP_ACCEPT);
+      running = true;
+      System.out.println("Flights server listening on port " + port + " with " + workers
+                         + " workers");
+
+      while (running) {
+        selector.select();
+
+        // Responses produced by workers since the last wakeup
+        Client ready;
+        while ((ready = pendingWrites.poll()) != null) {
+          if (ready.key.isValid()) {
+            ready.key.interestOps(ready.key.interestOps() | SelectionKey.OP_WRITE);
+          }
+        }
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          try {
+            if (!key.isValid()) {
+              continue;
+            }
+            if (key.isAcceptable()) {
+              accept(server);
+            }
+            if (key.isValid() && key.isReadable()) {
+              read((Client) key.attachment());
+            }
+            if (key.isValid() && key.isWritable()) {
+              write((Client) key.attachment());
+            }
+          } catch (IOException e) {
+            close((Client) key.attachment());
+          }
+        }
+      }
+    } finally {
+      shutdown();
+    }
+  }
+
+  /**
+   * Stop accepting and serving clients.
+   */
+  public void stop() {
+    running = false;
+    if (selector != null) {
+      selector.wakeup();
+    }
+  }
+
+  public int getOpenSessions() {
+    return openSessions.get();
+  }
+
+  private void accept(ServerSocketChannel server) throws IOException {
+    SocketChannel channel = server.accept();
+    if (channel == null) {
+      return;
+    }
+    channel.configureBlocking(false);
+    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+    key.attach(new Client(channel, key));
+    openSessions.incrementAndGet();
+  }
+
+  private void read(Client client) throws IOException {
+    ByteBuffer buffer = client.readBuffer;
+    int n = client.channel.read(buffer);
+    if (n < 0) {
+      close(client);
+      return;
+    }
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      byte b = buffer.get();
+      if (b == '\n') {
+        String command = new String(client.line.toByteArray(), StandardCharsets.UTF_8);
+        client.line.reset();
+        submit(client, command);
+      } else if (b != '\r') {
+        client.line.write(b);
+        if (client.line.size() > MAX_LINE_BYTES) {
+          close(client);
+          return;
+        }
+      }
+    }
+    buffer.clear();
+  }
+
+  private void submit(Client client, String command) {
+    synchronized (client) {
+      client.commands.add(command);
+      if (client.busy) {
+        return;
+      }
+      client.busy = true;
+    }
+    executor.execute(() -> drain(client));
+  }
+
+  // Runs on a worker thread: execute the client's queued commands in order
+  private void drain(Client client) {
+    while (true) {
+      String command;
+      synchronized (client) {
+        command = client.commands.poll();
+        if (command == null || client.closeAfterWrite) {
+          client.busy = false;
+          return;
+        }
+      }
+
+      String response = execute(client.session, command);
+      if (!response.endsWith("\n")) {
+        response += "\n";
+      }
+      if (response.equals("Goodbye\n")) {
+        client.closeAfterWrite = true;
+      }
+      client.outbox.add(ByteBuffer.wrap(response.getBytes(StandardCharsets.UTF_8)));
+      pendingWrites.add(client);
+      selector.wakeup();
+    }
+  }
+
+  private String execute(Session session, String command) {
+    QueryAbstract q;
+    try {
+      q = queries.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return "Error: server shutting down";
+    }
+    try {
+      q.setSession(session);
+      return FlightService.execute(q, command);
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+      return "Error: internal server error";
+    } finally {
+      q.setSession(new Session());
+      queries.add(q);
+    }
+  }
+
+  private void write(Client client) throws IOException {
+    ByteBuffer buffer;
+    while ((buffer = client.outbox.peek()) != null) {
+      client.channel.write(buffer);
+      if (buffer.hasRemaining()) {
+        // Socket buffer is full; wait for the next OP_WRITE
+        return;
+      }
+      client.outbox.poll();
+    }
+    client.key.interestOps(client.key.interestOps() & ~SelectionKey.OP_WRITE);
+    if (client.closeAfterWrite) {
+      close(client);
+    }
+  }
+
+  private void close(Client client) {
+    if (client == null || !client.key.isValid()) {
+      return;
+    }
+    client.key.cancel();
+    try {
+      client.channel.close();
+    } catch (IOException e) {}
+    openSessions.decrementAndGet();
+  }
+
+  private void shutdown() {
+    executor.shutdownNow();
+    QueryAbstract q;
+    while ((q = queries.poll()) != null) {
+      try {
+        q.closeConnection();
+      } catch (SQLException e) {}
+    }
+    try {
+      if (selector != null) {
+        for (SelectionKey key : selector.keys()) {
+          key.channel().close();
+        }
+        selector.close();
+      }
+    } catch (IOException e) {}
+  }
+
+  /**
+   * Network state for one connected client.
+   */
+  private static class Client {
+    final SocketChannel channel;
+    final SelectionKey key;
+    final Session session = new Session();
+    final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+    final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    final Queue<ByteBuffer> outbox = new ConcurrentLinkedQueue<>();
+
+    // Guarded by this
+    final Queue<String> commands = new ArrayDeque<>();
+    boolean busy;
+
+    volatile boolean closeAfterWrite;
+
+    Client(SocketChannel channel, SelectionKey key) {
+      this.channel = channel;
+      this.key = key;
+    }
+  }
+}
@@ -6,6 +6,7 @@ import java.util.regex.*;
 import java.sql.*;
 
 public class FlightService {
+  private static final int DEFAULT_SERVER_PORT = 3440;
 
   /**
    * Execute the specified command on the database query connection
@@ -85,6 +86,11 @@ public class FlightService {
       }
     }
 
+    // stats
+    else if (tokens[0].equals("stats")) {
+      response = stats();
+    }
+
     // quit
     else if (tokens[0].equals("quit")) {
       response = "Goodbye\n";
@@ -100,15 +106,28 @@ public class FlightService {
 
   /**
    * Establishes an application-to-database connection and runs the Flights
-   * application REPL
+   * application REPL, or, when started with {@code --server [port]}, serves many
+   * concurrent client sessions over the network
    * 
    * @param args
    * @throws IOException
    */
   public static void main(String[] args) throws IOException, SQLException {
+    if (args.length > 0 && args[0].equals("--server")) {
+      int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SERVER_PORT;
+      DBConfig config = DBConfig.get();
+      int workers = config.getInt("flightapp.server.workers", config.poolMaxSize);
+      new FlightServer(port, workers).run();
+      BookingJournal.flushShared();
+      DBConnUtils.closePool();
+      return;
+    }
+
     QueryAbstract q = new Query();
     menu(q);
     q.closeConnection();
+    BookingJournal.flushShared();
+    DBConnUtils.closePool();
   }
 
   /**
@@ -129,6 +148,7 @@ public class FlightService {
       System.out.println("> book <itinerary id>");
       System.out.println("> pay <reservation id>");
       System.out.println("> reservations");
+      System.out.println("> stats");
       System.out.println("> quit");
 
       // read an input command from the REPL
@@ -145,10 +165,36 @@ public class FlightService {
     }
   }
 
+  /**
+   * Process-wide operational metrics: per-command latency and outcomes, transaction retries,
+   * the connection pool and password hashing pool, and the booking journal or group commit
+   * coordinator if in use
+   */
+  private static String stats() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("Commands:\n").append(CommandMetrics.report());
+    sb.append("Transactions:\n").append(QueryAbstract.transactionStats());
+    try {
+      sb.append("Connection pool: ").append(DBConnUtils.getPool().stats()).append('\n');
+      sb.append("Password hashing: ").append(PasswordHasher.shared()).append('\n');
+      BookingJournal journal = BookingJournal.sharedIfOpen();
+      if (journal != null) {
+        sb.append("Booking journal: ").append(journal).append('\n');
+      }
+      BookingCoordinator coordinator = BookingCoordinator.sharedIfStarted();
+      if (coordinator != null) {
+        sb.append("Group commit: ").append(coordinator).append('\n');
+      }
+    } catch (IOException | SQLException e) {
+      sb.append("Pools unavailable: ").append(e.getMessage()).append('\n');
+    }
+    return sb.toString();
+  }
+
   /**
    * Tokenize a string into a string array
    */
-  private static String[] tokenize(String command) {
+  static String[] tokenize(String command) {
     String regex = "\"([^\"]*)\"|(\\S+)";
     Matcher m = Pattern.compile(regex).matcher(command);
     List<String> tokens = new ArrayList<>();
@@ -0,0 +1,70 @@
+package flightapp;
+
+/**
+ * Stable sorting of primitive int arrays (typically row numbers) with a custom comparator,
+ * without boxing every element into an {@code Integer}.
+ */
+final class IntSort {
+  private static final int INSERTION_SORT_THRESHOLD = 16;
+
+  /**
+   * Compares two ints, with the same contract as {@link java.util.Comparator}.
+   */
+  interface IntComparator {
+    int compare(int a, int b);
+  }
+
+  private IntSort() {}
+
+  static void sort(int[] values, IntComparator cmp) {
+    sort(values, 0, values.length, cmp);
+  }
+
+  /**
+   * Sorts values[from, to) in place.
+   */
+  static void sort(int[] values, int from, int to, IntComparator cmp) {
+    if (to - from < 2) {
+      return;
+    }
+    int[] scratch = new int[to - from];
+    mergeSort(values, scratch, from, to, cmp);
+  }
+
+  private static void mergeSort(int[] values, int[] scratch, int from, int to,
+                                IntComparator cmp) {
+    if (to - from <= INSERTION_SORT_THRESHOLD) {
+      for (int i = from + 1; i < to; i++) {
+        int v = values[i];
+        int j = i - 1;
+        while (j >= from && cmp.compare(values[j], v) > 0) {
+          values[j + 1] = values[j];
+          j--;
+        }
+        values[j + 1] = v;
+      }
+      return;
+    }
+
+    int mid = (from + to) >>> 1;
+    mergeSort(values, scratch, from, mid, cmp);
+    mergeSort(values, scratch, mid, to, cmp);
+    if (cmp.compare(values[mid - 1], values[mid]) <= 0) {
+      // Already in order
+      return;
+    }
+
+    System.arraycopy(values, from, scratch, 0, mid - from);
+    int i = 0, iEnd = mid - from, j = mid, k = from;
+    while (i < iEnd && j < to) {
+      if (cmp.compare(values[j], scratch[i]) < 0) {
+        values[k++] = values[j++];
+      } else {
+        values[k++] = scratch[i++];
+      }
+    }
+    while (i < iEnd) {
+      values[k++] = scratch[i++];
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package flightapp;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram with log-linear buckets.
+ *
+ * Latencies are kept in units of 1024 ns (about a microsecond).  Each power of two is split
+ * into 8 linear sub-buckets, so any reported percentile is within 12.5% of the true value, and
+ * everything from one microsecond to several hours fits in a few hundred counters.  Recording
+ * is a couple of atomic increments with no allocation, safe from any number of threads.
+ */
+public final class LatencyHistogram {
+  private static final int UNIT_SHIFT = 10;
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MAX_EXPONENT = 40;
+  private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder totalNanos = new LongAdder();
+  private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    counts.incrementAndGet(bucketOf(nanos >>> UNIT_SHIFT));
+    count.increment();
+    totalNanos.add(nanos);
+    maxNanos.accumulate(nanos);
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public double getMeanMillis() {
+    long n = count.sum();
+    return n == 0 ? 0 : totalNanos.sum() / 1e6 / n;
+  }
+
+  public double getMaxMillis() {
+    return maxNanos.get() / 1e6;
+  }
+
+  /**
+   * The latency at the given quantile (0 to 1), in milliseconds; 0 if nothing was recorded.
+   * Concurrent recording may or may not be included.
+   */
+  public double getPercentileMillis(double quantile) {
+    long[] snapshot = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(quantile * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        // Middle of the bucket, but never more than the largest value seen
+        long units = (lowerBound(i) + lowerBound(i + 1)) / 2;
+        return Math.min((units << UNIT_SHIFT) / 1e6, getMaxMillis());
+      }
+    }
+    return getMaxMillis();
+  }
+
+  // Values below SUB_BUCKETS get a bucket each; above, 8 buckets per power of two.
+  private static int bucketOf(long units) {
+    if (units < SUB_BUCKETS) {
+      return (int) units;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(units);
+    if (exponent > MAX_EXPONENT) {
+      return BUCKETS - 1;
+    }
+    int sub = (int) (units >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  private static long lowerBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    int sub = bucket % SUB_BUCKETS;
+    return (long) (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+  }
+}
@@ -0,0 +1,518 @@
+package flightapp;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Drives {@link FlightService#execute} from many concurrent sessions and reports what the system
+ * sustained.
+ *
+ * Each session runs on its own thread with its own {@link Query}, which holds a pooled
+ * connection for the whole run; the pool is enlarged to the number of sessions if needed.  It
+ * creates and logs in its own user, then issues commands drawn from a weighted mix, using the
+ * results of its own earlier searches and bookings to form valid book and pay commands.
+ * Alternatively, a recorded trace of "session command" lines is replayed, each session's
+ * commands in order; {@code --record} writes such a trace from a generated run.
+ *
+ * The report gives throughput, p50/p99/p999 latency per command, the transaction retries and
+ * aborts counted while running, and checks that no flight is overbooked, that every reservation
+ * ID handed out was unique, and that no balance went negative, summed over every shard when
+ * users are sharded (see {@link ShardRouter}).
+ *
+ * Usage: java flightapp.LoadGenerator [--db dbconn.properties] [--sessions n]
+ *            [--duration-seconds s] [--ops n] [--mix search=50,book=15,...] [--trace file]
+ *            [--record file] [--seed n] [--no-clear]
+ */
+public class LoadGenerator {
+  private static final String[] COMMANDS =
+      {"create", "login", "search", "book", "pay", "reservations"};
+  private static final String PASSWORD = "pw";
+  private static final int INITIAL_BALANCE = 1000000;
+
+  private final List<String[]> routes;
+  private final double[] mixWeights;
+  private final long deadlineNanos;
+  private final int opsPerSession;
+  private final PrintWriter recorder;
+
+  // Reservation IDs reported by successful bookings, across all sessions
+  private final List<Integer> bookedIds = new ArrayList<>();
+
+  LoadGenerator(List<String[]> routes, double[] mixWeights, long deadlineNanos,
+                int opsPerSession, PrintWriter recorder) {
+    this.routes = routes;
+    this.mixWeights = mixWeights;
+    this.deadlineNanos = deadlineNanos;
+    this.opsPerSession = opsPerSession;
+    this.recorder = recorder;
+  }
+
+  public static void main(String[] args) throws Exception {
+    String db = null;
+    int sessions = 8;
+    int durationSeconds = 30;
+    int ops = 0;
+    String mix = "create=2,login=3,search=50,book=20,pay=10,reservations=15";
+    String trace = null;
+    String record = null;
+    long seed = 1;
+    boolean clear = true;
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "--db":
+          db = args[++i];
+          break;
+        case "--sessions":
+          sessions = Integer.parseInt(args[++i]);
+          break;
+        case "--duration-seconds":
+          durationSeconds = Integer.parseInt(args[++i]);
+          break;
+        case "--ops":
+          ops = Integer.parseInt(args[++i]);
+          break;
+        case "--mix":
+          mix = args[++i];
+          break;
+        case "--trace":
+          trace = args[++i];
+          break;
+        case "--record":
+          record = args[++i];
+          break;
+        case "--seed":
+          seed = Long.parseLong(args[++i]);
+          break;
+        case "--no-clear":
+          clear = false;
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option: " + args[i]);
+      }
+    }
+    Map<Integer, List<String>> traces = trace == null ? null : readTrace(trace);
+    if (traces != null) {
+      sessions = traces.size();
+    }
+
+    // Every session holds a pooled connection for the whole run, so the pool must have one for
+    // each; otherwise the extra sessions would time out waiting for a connection.
+    DBConfig config = db != null ? DBConfig.load(db) : DBConfig.get();
+    if (sessions > config.poolMaxSize) {
+      config = config.with("flightapp.pool.max_size", Integer.toString(sessions));
+    }
+    DBConfig.install(config);
+
+    if (clear) {
+      Query query = new Query();
+      query.clearTablesWrap();
+      query.closeConnection();
+    }
+    long deadline = ops > 0 || traces != null ? Long.MAX_VALUE
+        : System.nanoTime() + durationSeconds * 1_000_000_000L;
+    PrintWriter recorder = record == null ? null : new PrintWriter(new FileWriter(record));
+    LoadGenerator generator = new LoadGenerator(loadRoutes(), parseMix(mix), deadline, ops,
+                                                recorder);
+
+    Map<String, long[]> statsBefore = snapshotTransactionStats();
+    List<SimulatedSession> workers = new ArrayList<>();
+    List<Integer> sessionIds = traces == null ? null : new ArrayList<>(traces.keySet());
+    for (int i = 0; i < sessions; i++) {
+      int id = sessionIds == null ? i : sessionIds.get(i);
+      workers.add(generator.new SimulatedSession(id, new Random(seed * 1000003 + id),
+                                                 traces == null ? null : traces.get(id)));
+    }
+
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<>();
+    for (SimulatedSession worker : workers) {
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+          worker.run();
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      }, "load-session-" + worker.id);
+      thread.start();
+      threads.add(thread);
+    }
+    long startNanos = System.nanoTime();
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long elapsedNanos = System.nanoTime() - startNanos;
+    if (recorder != null) {
+      recorder.close();
+    }
+
+    // Invariants are checked against the database
+    BookingJournal.flushShared();
+    boolean ok = generator.report(workers, elapsedNanos, statsBefore, clear);
+    DBConnUtils.closePool();
+    System.exit(ok ? 0 : 1);
+  }
+
+  /**
+   * One simulated user session.
+   */
+  final class SimulatedSession {
+    final int id;
+    private final Random random;
+    private final List<String> trace;
+
+    // Latencies in nanoseconds, by command
+    final Map<String, long[]> latencies = new HashMap<>();
+    final Map<String, Integer> counts = new HashMap<>();
+    int failures;
+
+    private String username;
+    private int usersCreated;
+    private int lastSearchSize;
+    private final List<Integer> unpaid = new ArrayList<>();
+
+    SimulatedSession(int id, Random random, List<String> trace) {
+      this.id = id;
+      this.random = random;
+      this.trace = trace;
+    }
+
+    void run() throws SQLException, IOException {
+      Query query = new Query();
+      try {
+        if (trace != null) {
+          for (String command : trace) {
+            execute(query, command);
+          }
+          return;
+        }
+
+        username = newUsername();
+        execute(query, "create " + username + " " + PASSWORD + " " + INITIAL_BALANCE);
+        execute(query, "login " + username + " " + PASSWORD);
+        for (int n = 0; opsPerSession == 0 || n < opsPerSession; n++) {
+          if (System.nanoTime() >= deadlineNanos) {
+            break;
+          }
+          execute(query, nextCommand());
+        }
+      } finally {
+        query.closeConnection();
+      }
+    }
+
+    private String nextCommand() {
+      double pick = random.nextDouble() * mixWeights[mixWeights.length - 1];
+      int command = 0;
+      while (mixWeights[command] <= pick) {
+        command++;
+      }
+      switch (COMMANDS[command]) {
+        case "create":
+          return "create " + newUsername() + " " + PASSWORD + " " + INITIAL_BALANCE;
+        case "login":
+          return "login " + username + " " + PASSWORD;
+        case "book":
+          if (lastSearchSize > 0) {
+            return "book " + random.nextInt(lastSearchSize);
+          }
+          return searchCommand();
+        case "pay":
+          if (!unpaid.isEmpty()) {
+            return "pay " + unpaid.remove(random.nextInt(unpaid.size()));
+          }
+          return "reservations";
+        case "reservations":
+          return "reservations";
+        default:
+          return searchCommand();
+      }
+    }
+
+    private String searchCommand() {
+      String[] route = routes.get(random.nextInt(routes.size()));
+      // Keep the real destination half the time; otherwise pick one that usually needs a hop
+      String dest = random.nextBoolean() ? route[1]
+          : routes.get(random.nextInt(routes.size()))[1];
+      return "search \"" + route[0] + "\" \"" + dest + "\" " + (random.nextInt(4) == 0 ? 1 : 0)
+          + " " + route[2] + " " + (1 + random.nextInt(10));
+    }
+
+    private String newUsername() {
+      return "load" + id + "_" + (usersCreated++);
+    }
+
+    private void execute(Query query, String command) {
+      if (recorder != null) {
+        synchronized (recorder) {
+          recorder.println(id + "\t" + command);
+        }
+      }
+      String name = command.split(" ", 2)[0];
+      long start = System.nanoTime();
+      String response = FlightService.execute(query, command);
+      record(name, System.nanoTime() - start);
+      observe(name, response);
+    }
+
+    private void observe(String command, String response) {
+      if (response.startsWith("Failed") || response.startsWith("Error")
+          || response.endsWith("failed\n")) {
+        failures++;
+      }
+      switch (command) {
+        case "search":
+          lastSearchSize = 0;
+          int at = response.indexOf("Itinerary ");
+          while (at >= 0) {
+            lastSearchSize++;
+            at = response.indexOf("\nItinerary ", at + 1);
+          }
+          break;
+        case "book":
+          String prefix = "Booked flight(s), reservation ID: ";
+          if (response.startsWith(prefix)) {
+            int rid = Integer.parseInt(response.substring(prefix.length()).trim());
+            unpaid.add(rid);
+            synchronized (bookedIds) {
+              bookedIds.add(rid);
+            }
+          }
+          break;
+        default:
+          break;
+      }
+    }
+
+    private void record(String command, long nanos) {
+      long[] samples = latencies.get(command);
+      int n = counts.getOrDefault(command, 0);
+      if (samples == null) {
+        samples = new long[1024];
+        latencies.put(command, samples);
+      } else if (n == samples.length) {
+        samples = Arrays.copyOf(samples, n * 2);
+        latencies.put(command, samples);
+      }
+      samples[n] = nanos;
+      counts.put(command, n + 1);
+    }
+  }
+
+  //
+  // Reporting
+  //
+
+  private boolean report(List<SimulatedSession> workers, long elapsedNanos,
+                         Map<String, long[]> statsBefore, boolean cleared)
+      throws SQLException, IOException {
+    Map<String, long[]> merged = new TreeMap<>();
+    Map<String, Integer> totals = new TreeMap<>();
+    int failures = 0;
+    for (SimulatedSession worker : workers) {
+      failures += worker.failures;
+      for (Map.Entry<String, Integer> count : worker.counts.entrySet()) {
+        String command = count.getKey();
+        long[] samples = worker.latencies.get(command);
+        long[] existing = merged.get(command);
+        int have = totals.getOrDefault(command, 0);
+        long[] combined = existing == null ? new long[count.getValue()]
+            : Arrays.copyOf(existing, have + count.getValue());
+        System.arraycopy(samples, 0, combined, have, count.getValue());
+        merged.put(command, combined);
+        totals.put(command, have + count.getValue());
+      }
+    }
+
+    double seconds = elapsedNanos / 1e9;
+    long total = 0;
+    for (int count : totals.values()) {
+      total += count;
+    }
+    System.out.printf("sessions: %d  elapsed: %.1f s  commands: %d  throughput: %.1f/s  "
+                      + "failed responses: %d%n%n", workers.size(), seconds, total,
+                      total / seconds, failures);
+    System.out.printf("%-14s %10s %10s %10s %10s %10s %10s%n", "command", "count", "per sec",
+                      "p50 ms", "p99 ms", "p999 ms", "max ms");
+    for (Map.Entry<String, long[]> entry : merged.entrySet()) {
+      long[] samples = entry.getValue();
+      Arrays.sort(samples);
+      System.out.printf("%-14s %10d %10.1f %10.2f %10.2f %10.2f %10.2f%n", entry.getKey(),
+                        samples.length, samples.length / seconds, percentile(samples, 0.50),
+                        percentile(samples, 0.99), percentile(samples, 0.999),
+                        samples[samples.length - 1] / 1e6);
+    }
+
+    System.out.println();
+    System.out.printf("%-14s %10s %10s %10s%n", "transaction", "attempts", "retries", "aborts");
+    for (Map.Entry<String, long[]> entry : snapshotTransactionStats().entrySet()) {
+      long[] before = statsBefore.getOrDefault(entry.getKey(), new long[3]);
+      long[] after = entry.getValue();
+      System.out.printf("%-14s %10d %10d %10d%n", entry.getKey(), after[0] - before[0],
+                        after[1] - before[1], after[2] - before[2]);
+    }
+
+    System.out.println();
+    return checkInvariants(cleared);
+  }
+
+  // Milliseconds at the given quantile of sorted samples
+  private static double percentile(long[] sorted, double quantile) {
+    int index = (int) Math.ceil(quantile * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+  }
+
+  private boolean checkInvariants(boolean cleared) throws SQLException, IOException {
+    boolean ok = true;
+
+    Set<Integer> unique = new HashSet<>(bookedIds);
+    ok &= check("reservation IDs handed out are unique",
+                unique.size() == bookedIds.size(),
+                (bookedIds.size() - unique.size()) + " duplicates");
+
+    // Users and reservations may be spread over several shards; seats are summed across them
+    ShardRouter router = ShardRouter.shared();
+    SchemaManager schema = SchemaManager.shared();
+    Map<Integer, Integer> booked = new HashMap<>();
+    Map<Integer, Integer> capacities = new HashMap<>();
+    int negative = 0;
+    int stored = 0;
+    for (int shard = 0; shard < router.shardCount(); shard++) {
+      try (Connection conn = router.openConnection(shard);
+           Statement stmt = conn.createStatement()) {
+        try (ResultSet rs = stmt.executeQuery(schema.sql(
+            "SELECT f.fid, f.capacity, COUNT(*) AS n FROM FLIGHTS AS f "
+            + "JOIN {Reservations} AS r ON r.flight1_id = f.fid OR r.flight2_id = f.fid "
+            + "GROUP BY f.fid, f.capacity"))) {
+          while (rs.next()) {
+            booked.merge(rs.getInt("fid"), rs.getInt("n"), Integer::sum);
+            capacities.put(rs.getInt("fid"), rs.getInt("capacity"));
+          }
+        }
+        negative += count(stmt, schema.sql("SELECT COUNT(*) AS n FROM {Users} WHERE balance < 0"));
+        stored += count(stmt, schema.sql("SELECT COUNT(*) AS n FROM {Reservations}"));
+      }
+    }
+
+    int overbooked = 0;
+    for (Map.Entry<Integer, Integer> entry : booked.entrySet()) {
+      if (entry.getValue() > capacities.get(entry.getKey())) {
+        overbooked++;
+      }
+    }
+    ok &= check("no flight is overbooked", overbooked == 0, overbooked + " flights");
+    ok &= check("no balance is negative", negative == 0, negative + " users");
+    if (cleared) {
+      ok &= check("every reported booking is stored", stored == bookedIds.size(),
+                  stored + " stored, " + bookedIds.size() + " reported");
+    }
+    return ok;
+  }
+
+  private static int count(Statement stmt, String sql) throws SQLException {
+    try (ResultSet rs = stmt.executeQuery(sql)) {
+      rs.next();
+      return rs.getInt("n");
+    }
+  }
+
+  private static boolean check(String name, boolean passed, String detail) {
+    System.out.println((passed ? "PASS " : "FAIL ") + name + (passed ? "" : ": " + detail));
+    return passed;
+  }
+
+  //
+  // Setup
+  //
+
+  // attempts, retries and aborts per transaction name
+  private static Map<String, long[]> snapshotTransactionStats() {
+    Map<String, long[]> snapshot = new TreeMap<>();
+    for (Map.Entry<String, QueryAbstract.TransactionStats> entry
+             : QueryAbstract.transactionStatsByOperation().entrySet()) {
+      QueryAbstract.TransactionStats stats = entry.getValue();
+      snapshot.put(entry.getKey(), new long[] {stats.attempts.sum(), stats.retries.sum(),
+                                               stats.aborts.sum()});
+    }
+    return snapshot;
+  }
+
+  // Cumulative weights in COMMANDS order, from "name=weight,..."
+  static double[] parseMix(String mix) {
+    double[] weights = new double[COMMANDS.length];
+    for (String part : mix.split(",")) {
+      String[] kv = part.trim().split("=");
+      int command = Arrays.asList(COMMANDS).indexOf(kv[0].trim());
+      if (command < 0 || kv.length != 2) {
+        throw new IllegalArgumentException("Bad mix entry: " + part);
+      }
+      weights[command] = Double.parseDouble(kv[1].trim());
+    }
+    for (int i = 1; i < weights.length; i++) {
+      weights[i] += weights[i - 1];
+    }
+    if (weights[weights.length - 1] <= 0) {
+      throw new IllegalArgumentException("Mix has no weight: " + mix);
+    }
+    return weights;
+  }
+
+  // Session id -> commands, from lines of "<session> <command>"; '#' starts a comment
+  static Map<Integer, List<String>> readTrace(String path) throws IOException {
+    Map<Integer, List<String>> traces = new TreeMap<>();
+    try (BufferedReader in = new BufferedReader(new FileReader(path))) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String[] parts = line.split("\\s+", 2);
+        if (parts.length < 2) {
+          throw new IllegalArgumentException("Bad trace line: " + line);
+        }
+        traces.computeIfAbsent(Integer.parseInt(parts[0]), k -> new ArrayList<>())
+            .add(parts[1]);
+      }
+    }
+    return traces;
+  }
+
+  // (origin, dest, day) of up to 1000 flights, to search for
+  private static List<String[]> loadRoutes() throws SQLException, IOException {
+    List<String[]> routes = new ArrayList<>();
+    try (Connection conn = DBConnUtils.openConnection();
+         Statement stmt = conn.createStatement()) {
+      stmt.setMaxRows(1000);
+      try (ResultSet rs = stmt.executeQuery(
+          "SELECT origin_city, dest_city, day_of_month FROM FLIGHTS WHERE canceled = 0")) {
+        while (rs.next()) {
+          routes.add(new String[] {rs.getString("origin_city"), rs.getString("dest_city"),
+                                   Integer.toString(rs.getInt("day_of_month"))});
+        }
+      }
+    }
+    if (routes.isEmpty()) {
+      throw new IllegalStateException("FLIGHTS is empty");
+    }
+    return routes;
+  }
+}
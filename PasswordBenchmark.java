@@ -0,0 +1,55 @@
+package flightapp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compares the built-in PBKDF2 engine with the JCE's SecretKeyFactory, after checking that both
+ * derive the same keys.
+ *
+ * Usage: java flightapp.PasswordBenchmark [iterations] [hashes per round] [rounds]
+ */
+public class PasswordBenchmark {
+  public static void main(String[] args) {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 65536;
+    int hashes = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+    String password = "correct horse battery staple";
+    byte[] salt = PasswordUtils.generateSalt();
+    for (PasswordUtils.Algorithm algorithm : PasswordUtils.Algorithm.values()) {
+      // SHA1 with the legacy key length; the others with one digest's worth
+      int keyBytes = algorithm == PasswordUtils.Algorithm.PBKDF2_HMAC_SHA1 ? 128
+          : algorithm == PasswordUtils.Algorithm.PBKDF2_HMAC_SHA256 ? 32 : 64;
+      byte[] expected = PasswordUtils.jceHash(password, salt, algorithm, iterations, keyBytes);
+      byte[] actual = Pbkdf2.derive(algorithm, password.getBytes(StandardCharsets.UTF_8), salt,
+                                    iterations, keyBytes);
+      if (!Arrays.equals(expected, actual)) {
+        throw new IllegalStateException("Derived keys differ for " + algorithm);
+      }
+
+      // The first rounds warm up the JIT; report the best round
+      long bestJce = Long.MAX_VALUE;
+      long bestEngine = Long.MAX_VALUE;
+      for (int round = 0; round < rounds; round++) {
+        long start = System.nanoTime();
+        for (int i = 0; i < hashes; i++) {
+          PasswordUtils.jceHash(password, salt, algorithm, iterations, keyBytes);
+        }
+        bestJce = Math.min(bestJce, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < hashes; i++) {
+          PasswordUtils.hash(password, salt, algorithm, iterations, keyBytes);
+        }
+        bestEngine = Math.min(bestEngine, System.nanoTime() - start);
+      }
+
+      double jceMillis = bestJce / 1e6 / hashes;
+      double engineMillis = bestEngine / 1e6 / hashes;
+      System.out.printf("%s (%d iterations, %d-byte key): jce %.2f ms/hash, engine %.2f ms/hash,"
+                        + " speedup %.2fx%n", algorithm, iterations, keyBytes, jceMillis,
+                        engineMillis, jceMillis / engineMillis);
+    }
+  }
+}
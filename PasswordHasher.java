@@ -0,0 +1,177 @@
+package flightapp;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs password hashing for logins and account creation on a small dedicated thread pool.
+ *
+ * Each PBKDF2 computation burns tens of milliseconds of CPU, so a burst of logins would otherwise
+ * occupy every session thread and starve searches and bookings.  The pool has a fixed number of
+ * threads and a bounded queue: when the queue is full, or a hash doesn't complete within the
+ * wait timeout, the caller gets {@link Saturated} right away and should fail the request.
+ */
+public final class PasswordHasher {
+  private static PasswordHasher shared;
+
+  private final ThreadPoolExecutor executor;
+  private final long waitNanos;
+
+  private final LongAdder completed = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder timeouts = new LongAdder();
+  private final LongAdder queueNanos = new LongAdder();
+  private final LongAdder hashNanos = new LongAdder();
+  private final LongAccumulator maxHashNanos = new LongAccumulator(Math::max, 0);
+
+  /**
+   * Thrown when a hash could not be computed in time; the request should be refused.
+   */
+  public static final class Saturated extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    Saturated(String message) {
+      super(message);
+    }
+  }
+
+  public PasswordHasher(int threads, int queueSize, long waitMillis) {
+    AtomicInteger threadCount = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                                           new ArrayBlockingQueue<>(Math.max(1, queueSize)),
+                                           r -> {
+                                             Thread t = new Thread(r, "password-hasher-"
+                                                 + threadCount.incrementAndGet());
+                                             t.setDaemon(true);
+                                             return t;
+                                           },
+                                           new ThreadPoolExecutor.AbortPolicy());
+    this.waitNanos = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+  }
+
+  /**
+   * Returns the shared hasher, configured from dbconn.properties on first use.  By default it
+   * uses half of the cores.
+   */
+  public static synchronized PasswordHasher shared() throws IOException {
+    if (shared == null) {
+      DBConfig config = DBConfig.get();
+      int threads = config.getInt("flightapp.hash_pool.threads",
+                                  Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+      shared = new PasswordHasher(Math.max(1, threads),
+                                  config.getInt("flightapp.hash_pool.queue_size", threads * 8),
+                                  config.getInt("flightapp.hash_pool.wait_millis", 2000));
+    }
+    return shared;
+  }
+
+  /**
+   * {@link PasswordUtils#saltAndHashPassword(String)} on the pool.
+   */
+  public byte[] saltAndHashPassword(String password) throws Saturated {
+    return run(() -> PasswordUtils.saltAndHashPassword(password));
+  }
+
+  /**
+   * {@link PasswordUtils#plaintextMatchesSaltedHash(String, byte[])} on the pool.
+   */
+  public boolean plaintextMatchesSaltedHash(String plaintext, byte[] saltedHashed)
+      throws Saturated {
+    return run(() -> PasswordUtils.plaintextMatchesSaltedHash(plaintext, saltedHashed));
+  }
+
+  private <T> T run(Callable<T> hash) throws Saturated {
+    long submitted = System.nanoTime();
+    Future<T> future;
+    try {
+      future = executor.submit(() -> {
+        long started = System.nanoTime();
+        queueNanos.add(started - submitted);
+        try {
+          return hash.call();
+        } finally {
+          long elapsed = System.nanoTime() - started;
+          hashNanos.add(elapsed);
+          maxHashNanos.accumulate(elapsed);
+          completed.increment();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      rejected.increment();
+      throw new Saturated("Password hashing queue is full");
+    }
+
+    try {
+      return future.get(waitNanos, TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      timeouts.increment();
+      throw new Saturated("Password hashing timed out");
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new Saturated("Interrupted waiting for password hashing");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  public int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  public int getActiveCount() {
+    return executor.getActiveCount();
+  }
+
+  public long getCompleted() {
+    return completed.sum();
+  }
+
+  public long getRejected() {
+    return rejected.sum();
+  }
+
+  public long getTimeouts() {
+    return timeouts.sum();
+  }
+
+  /**
+   * Mean time spent computing one hash, in milliseconds.
+   */
+  public double getAverageHashMillis() {
+    long n = completed.sum();
+    return n == 0 ? 0 : hashNanos.sum() / 1e6 / n;
+  }
+
+  /**
+   * Mean time a hash waited in the queue before starting, in milliseconds.
+   */
+  public double getAverageQueueMillis() {
+    long n = completed.sum();
+    return n == 0 ? 0 : queueNanos.sum() / 1e6 / n;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("threads: %d active: %d queued: %d completed: %d rejected: %d "
+                         + "timeouts: %d avg hash: %.2f ms max hash: %.2f ms avg queue: %.2f ms",
+                         executor.getMaximumPoolSize(), getActiveCount(), getQueueDepth(),
+                         getCompleted(), getRejected(), getTimeouts(), getAverageHashMillis(),
+                         maxHashNanos.get() / 1e6, getAverageQueueMillis());
+  }
+}
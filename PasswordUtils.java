@@ -1,14 +1,13 @@
 package flightapp;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.SQLException;
-import java.util.Arrays;
-import java.util.Properties;
 
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
@@ -16,49 +15,227 @@ import javax.crypto.spec.PBEKeySpec;
 
 /**
  * A collection of utility methods to help with managing passwords
+ *
+ * Stored hashes are self-describing: a short header records the hash format version, the PBKDF2
+ * algorithm, the iteration count, and the salt and key lengths, followed by the salt and the
+ * derived key.  New hashes use the policy configured in dbconn.properties
+ * ({@code flightapp.password.algorithm}, {@code .iterations}, {@code .key_bytes}).  Hashes
+ * written before the header existed (a 16-byte salt followed by a 128-byte
+ * PBKDF2WithHmacSHA1 key) still verify, and {@link #needsRehash(byte[])} reports them so they
+ * can be upgraded on the next successful login.
  */
 public class PasswordUtils {
   /**
    * Generates a cryptographically-secure salted password.
    */
   public static byte[] saltAndHashPassword(String password) {
+    Policy policy = policy();
     byte[] salt = generateSalt();
-    byte[] saltedHash = hashWithSalt(password, salt);
-
-    // TODO: combine the salt and the salted hash into a single byte array that
-    // can be written to the database
-    byte[] combinedSaltAndHash = new byte[salt.length + saltedHash.length];
-    System.arraycopy(salt, 0, combinedSaltAndHash, 0, SALT_LENGTH_BYTES);
-    System.arraycopy(saltedHash, 0, combinedSaltAndHash, SALT_LENGTH_BYTES, saltedHash.length);
-    return combinedSaltAndHash;
+    byte[] saltedHash = hash(password, salt, policy.algorithm, policy.iterations,
+                             policy.keyBytes);
+
+    // Header, then the salt, then the salted hash
+    ByteBuffer combined = ByteBuffer.allocate(HEADER_BYTES + salt.length + saltedHash.length);
+    combined.put(FORMAT_MARKER);
+    combined.put(FORMAT_VERSION);
+    combined.put(policy.algorithm.id);
+    combined.putInt(policy.iterations);
+    combined.put((byte) salt.length);
+    combined.putShort((short) saltedHash.length);
+    combined.put(salt);
+    combined.put(saltedHash);
+    return combined.array();
   }
 
   /**
    * Verifies whether the plaintext password can be hashed to provided salted hashed password.
    */
   public static boolean plaintextMatchesSaltedHash(String plaintext, byte[] saltedHashed) {
-    // TODO: extract the salt from the byte array (ie, undo the logic you implemented in 
-    // saltAndHashPassword), then use it to check whether the user-provided plaintext
-    // password matches the password hash.
-    byte[] extractedSalt = new byte[SALT_LENGTH_BYTES];
-    System.arraycopy(saltedHashed, 0, extractedSalt, 0, SALT_LENGTH_BYTES);
-    byte[] correctPasswordHash = new byte[saltedHashed.length - SALT_LENGTH_BYTES];
-    System.arraycopy(saltedHashed, SALT_LENGTH_BYTES, correctPasswordHash, 0, correctPasswordHash.length);
-
-    byte[] givenPasswordHash = hashWithSalt(plaintext, extractedSalt);
-    return Arrays.equals(correctPasswordHash, givenPasswordHash);
+    StoredHash stored = StoredHash.parse(saltedHashed);
+    if (stored == null) {
+      return false;
+    }
+    byte[] givenPasswordHash = hash(plaintext, stored.salt, stored.algorithm, stored.iterations,
+                                    stored.hash.length);
+    return MessageDigest.isEqual(stored.hash, givenPasswordHash);
+  }
+
+  /**
+   * Whether a stored hash was produced with parameters other than the current policy (or in
+   * the legacy format), and should be replaced once the plaintext is known.
+   */
+  public static boolean needsRehash(byte[] saltedHashed) {
+    StoredHash stored = StoredHash.parse(saltedHashed);
+    if (stored == null || stored.legacy) {
+      return true;
+    }
+    Policy policy = policy();
+    return stored.algorithm != policy.algorithm || stored.iterations != policy.iterations
+        || stored.hash.length != policy.keyBytes || stored.salt.length != SALT_LENGTH_BYTES;
   }
-  
+
+  // Stored hash format
+  private static final byte FORMAT_MARKER = (byte) 0xB7;
+  private static final byte FORMAT_VERSION = 1;
+  private static final int HEADER_BYTES = 10;
+
   // Password hashing parameter constants.
-  private static final int HASH_STRENGTH = 65536;
-  private static final int KEY_LENGTH_BYTES = 128;
   private static final int SALT_LENGTH_BYTES = 16;
 
+  // Parameters of hashes stored before the self-describing format
+  private static final int LEGACY_HASH_STRENGTH = 65536;
+  private static final int LEGACY_KEY_LENGTH_BYTES = 128;
+  private static final int LEGACY_SALT_LENGTH_BYTES = 16;
+
+  private static volatile Policy policy;
+
+  /**
+   * Supported PBKDF2 variants.  The id is what the stored format records; never reuse one.
+   */
+  enum Algorithm {
+    PBKDF2_HMAC_SHA1((byte) 1, "PBKDF2WithHmacSHA1"),
+    PBKDF2_HMAC_SHA256((byte) 2, "PBKDF2WithHmacSHA256"),
+    PBKDF2_HMAC_SHA512((byte) 3, "PBKDF2WithHmacSHA512");
+
+    final byte id;
+    final String jceName;
+
+    Algorithm(byte id, String jceName) {
+      this.id = id;
+      this.jceName = jceName;
+    }
+
+    static Algorithm fromId(byte id) {
+      for (Algorithm algorithm : values()) {
+        if (algorithm.id == id) {
+          return algorithm;
+        }
+      }
+      return null;
+    }
+
+    static Algorithm fromName(String name) {
+      for (Algorithm algorithm : values()) {
+        if (algorithm.jceName.equalsIgnoreCase(name) || algorithm.name().equalsIgnoreCase(name)) {
+          return algorithm;
+        }
+      }
+      throw new IllegalArgumentException("Unsupported password algorithm: " + name);
+    }
+  }
+
+  /**
+   * Parameters used for new password hashes.
+   */
+  static final class Policy {
+    final Algorithm algorithm;
+    final int iterations;
+    final int keyBytes;
+
+    Policy(Algorithm algorithm, int iterations, int keyBytes) {
+      if (iterations < 1 || keyBytes < 1 || keyBytes > 0xFFFF) {
+        throw new IllegalArgumentException("Invalid password hashing parameters");
+      }
+      this.algorithm = algorithm;
+      this.iterations = iterations;
+      this.keyBytes = keyBytes;
+    }
+  }
+
+  /**
+   * The current hashing policy, read from dbconn.properties on first use.  Falls back to
+   * PBKDF2-HMAC-SHA256 with a 32-byte key if there is no configuration.
+   */
+  static Policy policy() {
+    Policy current = policy;
+    if (current == null) {
+      Algorithm algorithm = Algorithm.PBKDF2_HMAC_SHA256;
+      int iterations = LEGACY_HASH_STRENGTH;
+      int keyBytes = 32;
+      try {
+        DBConfig config = DBConfig.get();
+        algorithm = Algorithm.fromName(config.getProperty("flightapp.password.algorithm",
+                                                          algorithm.jceName));
+        iterations = config.getInt("flightapp.password.iterations", iterations);
+        keyBytes = config.getInt("flightapp.password.key_bytes", keyBytes);
+      } catch (IOException e) {
+        // No dbconn.properties; use the defaults
+      }
+      current = new Policy(algorithm, iterations, keyBytes);
+      policy = current;
+    }
+    return current;
+  }
+
+  /**
+   * Override the hashing policy (e.g. from tools and benchmarks).
+   */
+  static void setPolicy(Policy newPolicy) {
+    policy = newPolicy;
+  }
+
+  /**
+   * A stored hash, split into its parameters, salt and derived key.
+   */
+  private static final class StoredHash {
+    final boolean legacy;
+    final Algorithm algorithm;
+    final int iterations;
+    final byte[] salt;
+    final byte[] hash;
+
+    private StoredHash(boolean legacy, Algorithm algorithm, int iterations, byte[] salt,
+                       byte[] hash) {
+      this.legacy = legacy;
+      this.algorithm = algorithm;
+      this.iterations = iterations;
+      this.salt = salt;
+      this.hash = hash;
+    }
+
+    /**
+     * @return null if the bytes are in neither format
+     */
+    static StoredHash parse(byte[] stored) {
+      if (stored == null) {
+        return null;
+      }
+
+      // A legacy hash could start with the marker byte by chance, so the header must also
+      // agree with the total length
+      if (stored.length >= HEADER_BYTES && stored[0] == FORMAT_MARKER
+          && stored[1] == FORMAT_VERSION) {
+        ByteBuffer header = ByteBuffer.wrap(stored, 2, HEADER_BYTES - 2);
+        Algorithm algorithm = Algorithm.fromId(header.get());
+        int iterations = header.getInt();
+        int saltBytes = header.get() & 0xFF;
+        int keyBytes = header.getShort() & 0xFFFF;
+        if (algorithm != null && iterations > 0 && keyBytes > 0
+            && stored.length == HEADER_BYTES + saltBytes + keyBytes) {
+          byte[] salt = new byte[saltBytes];
+          byte[] hash = new byte[keyBytes];
+          System.arraycopy(stored, HEADER_BYTES, salt, 0, saltBytes);
+          System.arraycopy(stored, HEADER_BYTES + saltBytes, hash, 0, keyBytes);
+          return new StoredHash(false, algorithm, iterations, salt, hash);
+        }
+      }
+
+      if (stored.length == LEGACY_SALT_LENGTH_BYTES + LEGACY_KEY_LENGTH_BYTES) {
+        byte[] salt = new byte[LEGACY_SALT_LENGTH_BYTES];
+        byte[] hash = new byte[LEGACY_KEY_LENGTH_BYTES];
+        System.arraycopy(stored, 0, salt, 0, LEGACY_SALT_LENGTH_BYTES);
+        System.arraycopy(stored, LEGACY_SALT_LENGTH_BYTES, hash, 0, LEGACY_KEY_LENGTH_BYTES);
+        return new StoredHash(true, Algorithm.PBKDF2_HMAC_SHA1, LEGACY_HASH_STRENGTH, salt,
+                              hash);
+      }
+      return null;
+    }
+  }
+
   /**
    * Generate a small bit of randomness to serve as a password "salt"
    */
   static byte[] generateSalt() {
-    // TODO: implement this.
     byte[] salt = new byte[SALT_LENGTH_BYTES];
     SecureRandom random = new SecureRandom();
     random.nextBytes(salt);
@@ -66,24 +243,41 @@ public class PasswordUtils {
   }
 
   /**
-   * Uses the provided salt to generate a cryptographically-secure hash of the provided password.
-   * The resultant byte array will be KEY_LENGTH_BYTES bytes long.
+   * Uses the provided salt to generate a cryptographically-secure hash of the provided password,
+   * with the legacy parameters.  The resultant byte array will be 128 bytes long.
    */
   static byte[] hashWithSalt(String password, byte[] salt)
     throws IllegalStateException {
+    return hash(password, salt, Algorithm.PBKDF2_HMAC_SHA1, LEGACY_HASH_STRENGTH,
+                LEGACY_KEY_LENGTH_BYTES);
+  }
+
+  /**
+   * Uses the provided salt to generate a cryptographically-secure hash of the provided password.
+   * The resultant byte array will be keyBytes bytes long.
+   */
+  static byte[] hash(String password, byte[] salt, Algorithm algorithm, int iterations,
+                     int keyBytes) throws IllegalStateException {
+    // Same bytes as the JCE, which also encodes the password as UTF-8, for half the work
+    return Pbkdf2.derive(algorithm, password.getBytes(StandardCharsets.UTF_8), salt, iterations,
+                         keyBytes);
+  }
+
+  /**
+   * The same as {@link #hash}, computed with the JCE's SecretKeyFactory (for comparison).
+   */
+  static byte[] jceHash(String password, byte[] salt, Algorithm algorithm, int iterations,
+                        int keyBytes) throws IllegalStateException {
     // Specify the hash parameters, including the salt
     KeySpec spec = new PBEKeySpec(password.toCharArray(), salt,
-                                  HASH_STRENGTH, KEY_LENGTH_BYTES * 8 /* length in bits */);
+                                  iterations, keyBytes * 8 /* length in bits */);
 
     // Hash the whole thing
-    SecretKeyFactory factory = null;
-    byte[] hash = null; 
     try {
-      factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-      hash = factory.generateSecret(spec).getEncoded();
-      return hash;
+      SecretKeyFactory factory = SecretKeyFactory.getInstance(algorithm.jceName);
+      return factory.generateSecret(spec).getEncoded();
     } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
-      throw new IllegalStateException();
+      throw new IllegalStateException(ex);
     }
   }
 
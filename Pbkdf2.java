@@ -0,0 +1,197 @@
+package flightapp;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+
+/**
+ * A PBKDF2 (RFC 8018) implementation that derives exactly the same keys as the JCE's
+ * PBKDF2WithHmacSHA1 / SHA256 / SHA512, with about half the hashing work.
+ *
+ * The JCE's HMAC re-hashes the padded key at the start of every inner and outer hash, so each
+ * PBKDF2 iteration costs four compression calls plus a couple of temporary arrays.  Here the key
+ * XOR ipad and key XOR opad blocks are hashed once per password into two primed digests, and
+ * every HMAC continues from a copy of one of those, so an iteration costs two compression calls.
+ * Digests and scratch buffers are kept per thread.  Hashing itself stays in
+ * {@link MessageDigest}, whose compression functions the JVM replaces with CPU instructions
+ * where it can.
+ */
+final class Pbkdf2 {
+  // Iterations between checks for interruption, so a cancelled hash stops early
+  private static final int INTERRUPT_CHECK_EVERY = 1024;
+
+  private static final ThreadLocal<Engine> SHA1 =
+      ThreadLocal.withInitial(() -> new Engine("SHA-1", 64));
+  private static final ThreadLocal<Engine> SHA256 =
+      ThreadLocal.withInitial(() -> new Engine("SHA-256", 64));
+  private static final ThreadLocal<Engine> SHA512 =
+      ThreadLocal.withInitial(() -> new Engine("SHA-512", 128));
+
+  private Pbkdf2() {}
+
+  /**
+   * Derive keyBytes bytes from the (UTF-8 encoded) password and salt.
+   *
+   * @throws CancellationException if the thread is interrupted while deriving; the interrupt
+   *                               stays set
+   */
+  static byte[] derive(PasswordUtils.Algorithm algorithm, byte[] password, byte[] salt,
+                       int iterations, int keyBytes) {
+    Engine engine;
+    switch (algorithm) {
+      case PBKDF2_HMAC_SHA1:
+        engine = SHA1.get();
+        break;
+      case PBKDF2_HMAC_SHA256:
+        engine = SHA256.get();
+        break;
+      case PBKDF2_HMAC_SHA512:
+        engine = SHA512.get();
+        break;
+      default:
+        throw new IllegalArgumentException("Unsupported algorithm: " + algorithm);
+    }
+    try {
+      return engine.derive(password, salt, iterations, keyBytes);
+    } catch (DigestException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * PBKDF2 over one hash function.  Not thread-safe; each thread has its own.
+   */
+  private static final class Engine {
+    private final int blockBytes;
+    private final int digestBytes;
+
+    // Digests that have absorbed key XOR ipad / key XOR opad, copied for every HMAC
+    private final MessageDigest inner;
+    private final MessageDigest outer;
+    private final boolean cloneable;
+
+    // Re-fed with a pad instead, if the provider's digests can't be copied
+    private final MessageDigest work;
+    private final byte[] innerPad;
+    private final byte[] outerPad;
+
+    // Scratch: the current Uj, the running XOR of U1..Uj, and INT(i)
+    private final byte[] u;
+    private final byte[] t;
+    private final byte[] blockIndex = new byte[4];
+
+    Engine(String digestName, int blockBytes) {
+      try {
+        this.inner = MessageDigest.getInstance(digestName);
+        this.outer = MessageDigest.getInstance(digestName);
+        this.work = MessageDigest.getInstance(digestName);
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+      this.blockBytes = blockBytes;
+      this.digestBytes = inner.getDigestLength();
+      this.innerPad = new byte[blockBytes];
+      this.outerPad = new byte[blockBytes];
+      this.u = new byte[digestBytes];
+      this.t = new byte[digestBytes];
+
+      boolean canClone = true;
+      try {
+        inner.clone();
+      } catch (CloneNotSupportedException e) {
+        canClone = false;
+      }
+      this.cloneable = canClone;
+    }
+
+    byte[] derive(byte[] password, byte[] salt, int iterations, int keyBytes)
+        throws DigestException {
+      try {
+        initPads(password);
+        byte[] key = new byte[keyBytes];
+        int blocks = (keyBytes + digestBytes - 1) / digestBytes;
+        for (int i = 1; i <= blocks; i++) {
+          // U1 = HMAC(P, S || INT(i))
+          blockIndex[0] = (byte) (i >>> 24);
+          blockIndex[1] = (byte) (i >>> 16);
+          blockIndex[2] = (byte) (i >>> 8);
+          blockIndex[3] = (byte) i;
+          MessageDigest digest = start(inner, innerPad);
+          digest.update(salt);
+          digest.update(blockIndex);
+          finish(digest);
+          System.arraycopy(u, 0, t, 0, digestBytes);
+
+          // Uj = HMAC(P, Uj-1); T = U1 ^ ... ^ Uc
+          for (int j = 1; j < iterations; j++) {
+            if (j % INTERRUPT_CHECK_EVERY == 0 && Thread.currentThread().isInterrupted()) {
+              throw new CancellationException("Password hashing interrupted");
+            }
+            digest = start(inner, innerPad);
+            digest.update(u);
+            finish(digest);
+            for (int b = 0; b < digestBytes; b++) {
+              t[b] ^= u[b];
+            }
+          }
+
+          int offset = (i - 1) * digestBytes;
+          System.arraycopy(t, 0, key, offset, Math.min(digestBytes, keyBytes - offset));
+        }
+        return key;
+      } finally {
+        // Don't leave anything derived from the password behind in this thread's state
+        Arrays.fill(u, (byte) 0);
+        Arrays.fill(t, (byte) 0);
+        Arrays.fill(innerPad, (byte) 0);
+        Arrays.fill(outerPad, (byte) 0);
+        inner.reset();
+        outer.reset();
+        work.reset();
+      }
+    }
+
+    // Hash key XOR ipad and key XOR opad once per password.
+    private void initPads(byte[] password) {
+      byte[] key = password;
+      if (key.length > blockBytes) {
+        work.reset();
+        key = work.digest(key);
+      }
+      Arrays.fill(innerPad, (byte) 0x36);
+      Arrays.fill(outerPad, (byte) 0x5c);
+      for (int i = 0; i < key.length; i++) {
+        innerPad[i] ^= key[i];
+        outerPad[i] ^= key[i];
+      }
+      inner.reset();
+      inner.update(innerPad);
+      outer.reset();
+      outer.update(outerPad);
+    }
+
+    // A digest positioned just after the given pad.
+    private MessageDigest start(MessageDigest primed, byte[] pad) {
+      if (cloneable) {
+        try {
+          return (MessageDigest) primed.clone();
+        } catch (CloneNotSupportedException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+      work.reset();
+      work.update(pad);
+      return work;
+    }
+
+    // Complete the inner hash, then u = H(opad || inner digest).
+    private void finish(MessageDigest innerDigest) throws DigestException {
+      innerDigest.digest(u, 0, digestBytes);
+      MessageDigest digest = start(outer, outerPad);
+      digest.update(u);
+      digest.digest(u, 0, digestBytes);
+    }
+  }
+}
@@ -8,7 +8,6 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 /**
@@ -18,38 +17,111 @@ public class Query extends QueryAbstract {
   //
   // Canned queries
   //
-  private static final String FLIGHT_CAPACITY_SQL = "SELECT capacity FROM Flights WHERE fid = ?";
-  private PreparedStatement flightCapacityStmt;
+  private static final String FLIGHT_BY_ID_SQL = "SELECT fid, day_of_month, carrier_id, flight_num, "
+      + "origin_city, dest_city, actual_time, capacity, price FROM FLIGHTS WHERE fid = ?";
+  private PreparedStatement flightByIdStmt;
 
-  //
-  // Instance variables
-  //
-  private boolean loggedIn;
-  private String currentUser;
-  private List<Itinerary> lastSearchedItineraries;
+  // Outcomes of the pay batch
+  private static final int PAY_OK = 0;
+  private static final int PAY_NOT_FOUND = 1;
+  private static final int PAY_INSUFFICIENT_BALANCE = 2;
+
+  // Whether search is served from the in-memory FlightIndex instead of FLIGHTS
+  private boolean useFlightIndex;
+
+  // Shared fid -> flight metadata cache
+  private final FlightCache flightCache;
+
+  // Shared allocator of reservation IDs
+  private final ReservationIdAllocator ridAllocator;
+
+  // Shared cache of recent search results
+  private final SearchCache searchCache;
+
+  // Shared pool that runs password hashing off the session thread
+  private final PasswordHasher passwordHasher;
+
+  // Shared in-process seat counters and booking journal; null unless book runs in the
+  // inventory booking mode (flightapp.booking_mode=inventory)
+  private final SeatInventory seatInventory;
+  private final BookingJournal bookingJournal;
+
+  // Shared group-commit coordinator; null unless book runs in the group booking mode
+  // (flightapp.booking_mode=group)
+  private final BookingCoordinator bookingCoordinator;
+
+  // Shared seat counts on the primary shard; null unless users are sharded over several
+  // databases, when book takes seats there instead of in its own transaction
+  private final SeatLedger seatLedger;
+
+  // Reused across searches to render results without per-request buffers
+  private final StringBuilder searchOutput = new StringBuilder(4096);
 
   // Prepared Statements
   private PreparedStatement clearUsersTable;
   private PreparedStatement clearReservationsTable;
   private PreparedStatement createUser;
   private PreparedStatement getUserIfExists;
+  private PreparedStatement updatePassword;
   private PreparedStatement getDirectFlights;
   private PreparedStatement getIndirectFlights;
   private PreparedStatement getReservationsForDay;
   private PreparedStatement addReserveration;
-  private PreparedStatement getSeatsTakenFlight1;
-  private PreparedStatement getSeatsTakenFlight2;
-  private PreparedStatement getReservationFromResID;
-  private PreparedStatement updateReservationPayment;
-  private PreparedStatement getFlightFromID;
-  private PreparedStatement getUserBalance;
-  private PreparedStatement updateUserBalance;
-  private PreparedStatement getNextResID;
+  private PreparedStatement clearFlightSeatsTable;
+  private PreparedStatement reserveSeat;
+  private PreparedStatement reserveFirstSeat;
+  private PreparedStatement getSeatCounter;
+  private PreparedStatement payReservation;
+  private PreparedStatement getUnpaidReservation;
+  private PreparedStatement debitBalance;
+  private PreparedStatement getBalance;
+  private PreparedStatement markPaid;
+  private PreparedStatement clearReservationIdsTable;
   private PreparedStatement getReservationList;
+  private PreparedStatement countBookedSeats;
 
   protected Query() throws SQLException, IOException {
-    this.loggedIn = false;
-    prepareStatements();
+    // The superclass has leased a connection; give it back if the rest fails
+    try {
+      this.useFlightIndex = DBConfig.get().getBoolean("flightapp.flight_index", true);
+      this.searchCache = SearchCache.shared();
+      this.flightCache = FlightCache.shared();
+      this.ridAllocator = ReservationIdAllocator.shared();
+      this.passwordHasher = PasswordHasher.shared();
+      String bookingMode = DBConfig.get().getProperty("flightapp.booking_mode", "database");
+      switch (bookingMode.trim().toLowerCase()) {
+        case "database":
+          this.seatInventory = null;
+          this.bookingJournal = null;
+          this.bookingCoordinator = null;
+          break;
+        case "inventory":
+          this.seatInventory = SeatInventory.shared();
+          this.bookingJournal = BookingJournal.shared();
+          this.bookingCoordinator = null;
+          break;
+        case "group":
+          this.seatInventory = null;
+          this.bookingJournal = null;
+          this.bookingCoordinator = BookingCoordinator.shared();
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown booking mode: " + bookingMode);
+      }
+      if (ShardRouter.shared().shardCount() > 1) {
+        if (this.bookingJournal != null || this.bookingCoordinator != null) {
+          throw new IllegalArgumentException("flightapp.booking_mode=" + bookingMode
+                                             + " does not support flightapp.shard_count > 1");
+        }
+        this.seatLedger = SeatLedger.shared();
+      } else {
+        this.seatLedger = null;
+      }
+      prepareStatements();
+    } catch (SQLException | IOException | RuntimeException e) {
+      releaseAfterFailedInit();
+      throw e;
+    }
   }
 
   /**
@@ -60,8 +132,17 @@ public class Query extends QueryAbstract {
   public void clearTables() {
     try {
       // TODO: YOUR CODE HERE
+      if (this.bookingJournal != null) {
+        this.bookingJournal.clear();
+      }
+      this.clearFlightSeatsTable.execute();
       this.clearReservationsTable.execute();
+      this.clearReservationIdsTable.execute();
       this.clearUsersTable.execute();
+      this.ridAllocator.reset();
+      if (this.seatInventory != null) {
+        this.seatInventory.reset();
+      }
     } catch (Exception e) {
       e.printStackTrace();
     }
@@ -70,41 +151,52 @@ public class Query extends QueryAbstract {
   /*
    * prepare all the SQL statements in this method.
    */
-  private void prepareStatements() throws SQLException {
-    flightCapacityStmt = conn.prepareStatement(FLIGHT_CAPACITY_SQL);
+  @Override
+  protected void prepareStatements() throws SQLException {
+    flightByIdStmt = prepare(FLIGHT_BY_ID_SQL);
 
     // TODO: YOUR CODE HERE
     // Statements for clearing the data from Users and Reservations
-    String clearUsersTableString = "DELETE FROM Users_lizazak";
-    this.clearUsersTable = conn.prepareStatement(clearUsersTableString);
+    String clearUsersTableString = "DELETE FROM {Users}";
+    this.clearUsersTable = prepare(clearUsersTableString);
+
+    String clearReservationsTableString = "DELETE FROM {Reservations}";
+    this.clearReservationsTable = prepare(clearReservationsTableString);
 
-    String clearReservationsTableString = "DELETE FROM Reservations_lizazak";
-    this.clearReservationsTable = conn.prepareStatement(clearReservationsTableString);
+    String clearReservationIdsTableString = "DELETE FROM {ReservationIds}";
+    this.clearReservationIdsTable = prepare(clearReservationIdsTableString);
+
+    String clearFlightSeatsTableString = "DELETE FROM {FlightSeats}";
+    this.clearFlightSeatsTable = prepare(clearFlightSeatsTableString);
 
     // Statement for creating a new user
-    String createUserString = "INSERT INTO Users_lizazak (username, hashedPassword, balance) VALUES (?, ?, ?)";
-    this.createUser = conn.prepareStatement(createUserString);
+    String createUserString = "INSERT INTO {Users} (username, hashedPassword, balance) VALUES (?, ?, ?)";
+    this.createUser = prepare(createUserString);
 
     // Statement for checking if a username already exists in the database
-    String getUserIfExistsString = "SELECT * FROM Users_lizazak WHERE username = ?";
-    this.getUserIfExists = conn.prepareStatement(getUserIfExistsString);
+    String getUserIfExistsString = "SELECT * FROM {Users} WHERE username = ?";
+    this.getUserIfExists = prepare(getUserIfExistsString);
+
+    // Statement for upgrading a user's stored password hash
+    String updatePasswordString = "UPDATE {Users} SET hashedPassword = ? WHERE username = ?";
+    this.updatePassword = prepare(updatePasswordString);
 
     // Statement for getting direct flights based on user input.
-    String getDirectFlightsString = "SELECT TOP(?) f.fid, f.carrier_id, f.flight_num, f.actual_time, f.capacity, f.price " 
-                                    + "FROM FLIGHTS AS f "
+    String getDirectFlightsString = dialect.selectFirst("f.fid, f.carrier_id, f.flight_num, f.actual_time, f.capacity, f.price",
+                                    "FROM FLIGHTS AS f "
                                     + "WHERE f.canceled = 0 "
                                     + "AND f.origin_city = ? "
                                     + "AND f.dest_city = ? "
                                     + "AND f.day_of_month = ? "
-                                    + "ORDER BY f.actual_time ASC, f.fid ASC";
-    this.getDirectFlights = conn.prepareStatement(getDirectFlightsString);
+                                    + "ORDER BY f.actual_time ASC, f.fid ASC");
+    this.getDirectFlights = prepare(getDirectFlightsString);
 
     // Statement for getting indirect flights based on user input
-    String getIndirectFlightsString = "SELECT TOP(?) f1.fid AS fid1, f1.carrier_id AS cid1, f1.flight_num AS fnum1, " 
-                                    + "f1.dest_city AS dest1, f1.actual_time AS time1, f1.capacity AS cap1, f1.price AS price1, " 
+    String getIndirectFlightsString = dialect.selectFirst("f1.fid AS fid1, f1.carrier_id AS cid1, f1.flight_num AS fnum1, "
+                                    + "f1.dest_city AS dest1, f1.actual_time AS time1, f1.capacity AS cap1, f1.price AS price1, "
                                     + "f2.fid AS fid2, f2.carrier_id AS cid2, f2.flight_num AS fnum2, "
-                                    + "f2.actual_time AS time2, f2.capacity AS cap2, f2.price AS price2 "
-                                    + "FROM FLIGHTS AS f1 "
+                                    + "f2.actual_time AS time2, f2.capacity AS cap2, f2.price AS price2",
+                                    "FROM FLIGHTS AS f1 "
                                     + "JOIN FLIGHTS AS f2 ON f1.dest_city = f2.origin_city "
                                     + "WHERE f1.canceled = 0 "
                                     + "AND f2.canceled = 0 "
@@ -112,52 +204,101 @@ public class Query extends QueryAbstract {
                                     + "AND f2.dest_city = ? "
                                     + "AND f1.day_of_month = ? "
                                     + "AND f1.day_of_month = f2.day_of_month "
-                                    + "ORDER BY (f1.actual_time + f2.actual_time) ASC, f1.fid ASC, f2.fid ASC";
-    this.getIndirectFlights = conn.prepareStatement(getIndirectFlightsString);
+                                    + "ORDER BY (f1.actual_time + f2.actual_time) ASC, f1.fid ASC, f2.fid ASC");
+    this.getIndirectFlights = prepare(getIndirectFlightsString);
 
     // Statement for getting a reservation based on a specific day.
-    String getReservationsForDayString = "SELECT * FROM Reservations_lizazak AS r JOIN Flights AS f ON r.flight1_id = f.fid WHERE f.day_of_month = ? AND r.username = ?";
-    this.getReservationsForDay = conn.prepareStatement(getReservationsForDayString);
+    String getReservationsForDayString = "SELECT r.rid FROM {Reservations} AS r JOIN Flights AS f ON r.flight1_id = f.fid WHERE f.day_of_month = ? AND r.username = ?";
+    this.getReservationsForDay = prepare(getReservationsForDayString);
 
     // Statement for inserting a booking a new itinerary
-    String addReservationString = "INSERT INTO Reservations_lizazak (rid, username, paid, flight1_id, flight2_id) VALUES (?, ?, ?, ?, ?)";
-    this.addReserveration = conn.prepareStatement(addReservationString);
-
-    // Statement for getting the current seats taken in flight 1
-    String getSeatsTakenString1  = "SELECT COUNT(*) AS count FROM Reservations_lizazak WHERE flight1_id = ?";
-    this.getSeatsTakenFlight1 = conn.prepareStatement(getSeatsTakenString1);
-
-    // Statement for getting the current seats taken in flight 2
-    String getSeatsTakenString2  = "SELECT COUNT(*) AS count FROM Reservations_lizazak WHERE flight2_id = ?";
-    this.getSeatsTakenFlight2 = conn.prepareStatement(getSeatsTakenString2);
-
-    String getReservationFromResIDString = "SELECT username, paid, flight1_id, flight2_id FROM Reservations_lizazak WHERE rid = ?";
-    this.getReservationFromResID = conn.prepareStatement(getReservationFromResIDString);
-
-    String updateReservationPaymentString = "UPDATE Reservations_lizazak SET paid = 1 WHERE rid = ?";
-    this.updateReservationPayment = conn.prepareStatement(updateReservationPaymentString);
-
-    String getFlightFromIDString = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price FROM FLIGHTS WHERE fid = ?";
-    this.getFlightFromID = conn.prepareStatement(getFlightFromIDString);
-
-    String getUserBalanceString = "SELECT balance FROM Users_lizazak WHERE username = ?";
-    this.getUserBalance = conn.prepareStatement(getUserBalanceString);
-
-    String updateUserBalanceString = "UPDATE Users_lizazak SET balance = ? WHERE username = ?";
-    this.updateUserBalance = conn.prepareStatement(updateUserBalanceString);
+    String addReservationString = "INSERT INTO {Reservations} (rid, username, paid, flight1_id, flight2_id) VALUES (?, ?, ?, ?, ?)";
+    this.addReserveration = prepare(addReservationString);
+
+    // Statement for taking a seat on a flight that still has room. Seats booked per flight are
+    // kept in the FlightSeats table (fid INT PRIMARY KEY, booked INT NOT NULL), updated in the
+    // same transaction as the reservation insert.
+    String reserveSeatString = "UPDATE {FlightSeats} SET booked = booked + 1 WHERE fid = ? AND booked < ?";
+    this.reserveSeat = prepare(reserveSeatString);
+
+    // Statement for creating a flight's seat counter on its first booking. The counter starts
+    // from any reservations made before the counter existed.
+    String reserveFirstSeatString = "INSERT INTO {FlightSeats} (fid, booked) "
+                                    + "SELECT ?, c.taken + 1 FROM "
+                                    + "(SELECT COUNT(*) AS taken FROM {Reservations} WHERE flight1_id = ? OR flight2_id = ?) AS c "
+                                    + "WHERE c.taken < ? "
+                                    + "AND NOT EXISTS (SELECT * FROM {FlightSeats} WHERE fid = ?)";
+    this.reserveFirstSeat = prepare(reserveFirstSeatString);
+
+    // Statement for telling a full flight apart from one without a counter yet
+    String getSeatCounterString = "SELECT booked FROM {FlightSeats} WHERE fid = ?";
+    this.getSeatCounter = prepare(getSeatCounterString);
+
+    if (this.seatInventory != null) {
+      // Statement for the seats already booked on a flight, when the inventory first loads it
+      String countBookedSeatsString = "SELECT COALESCE((SELECT booked FROM {FlightSeats} WHERE fid = ?), "
+                                      + "(SELECT COUNT(*) FROM {Reservations} WHERE flight1_id = ? OR flight2_id = ?)) AS booked";
+      this.countBookedSeats = prepare(countBookedSeatsString);
+    }
 
-    String getNextResIDString = "SELECT COUNT(*) AS count FROM Reservations_lizazak";
-    this.getNextResID = conn.prepareStatement(getNextResIDString);
+    if (dialect.supportsPayBatch()) {
+      // Server-side batch that pays for a reservation atomically: checks that the reservation
+      // exists, belongs to the user and is unpaid, prices it, debits the balance only if it
+      // covers the price, and marks the reservation paid.
+      String payReservationString = "SET NOCOUNT ON; SET XACT_ABORT ON; "
+                                    + "DECLARE @rid INT = ?; DECLARE @cost INT, @balance INT, @status INT = " + PAY_OK + "; "
+                                    + "BEGIN TRANSACTION; "
+                                    + "SELECT @cost = f1.price + COALESCE(f2.price, 0) "
+                                    + "FROM {Reservations} AS r WITH (UPDLOCK) "
+                                    + "JOIN FLIGHTS AS f1 ON f1.fid = r.flight1_id "
+                                    + "LEFT JOIN FLIGHTS AS f2 ON f2.fid = r.flight2_id "
+                                    + "WHERE r.rid = @rid AND r.username = ? AND r.paid = 0; "
+                                    + "IF @cost IS NULL SET @status = " + PAY_NOT_FOUND + "; "
+                                    + "ELSE BEGIN "
+                                    + "UPDATE {Users} SET @balance = balance = balance - @cost WHERE username = ? AND balance >= @cost; "
+                                    + "IF @@ROWCOUNT = 0 BEGIN "
+                                    + "SET @status = " + PAY_INSUFFICIENT_BALANCE + "; "
+                                    + "SELECT @balance = balance FROM {Users} WHERE username = ?; "
+                                    + "END "
+                                    + "ELSE UPDATE {Reservations} SET paid = 1 WHERE rid = @rid; "
+                                    + "END; "
+                                    + "COMMIT TRANSACTION; "
+                                    + "SELECT @status AS status, @balance AS balance, @cost AS cost";
+      this.payReservation = prepare(payReservationString);
+    } else {
+      // Statements for paying step by step, in one transaction, on engines without
+      // server-side batches.
+      String getUnpaidReservationString = "SELECT flight1_id, flight2_id FROM {Reservations} WHERE rid = ? AND username = ? AND paid = 0";
+      this.getUnpaidReservation = prepare(getUnpaidReservationString);
+
+      String debitBalanceString = "UPDATE {Users} SET balance = balance - ? WHERE username = ? AND balance >= ?";
+      this.debitBalance = prepare(debitBalanceString);
+
+      String getBalanceString = "SELECT balance FROM {Users} WHERE username = ?";
+      this.getBalance = prepare(getBalanceString);
+
+      String markPaidString = "UPDATE {Reservations} SET paid = 1 WHERE rid = ? AND paid = 0";
+      this.markPaid = prepare(markPaidString);
+    }
 
-    String getReservationListString = "SELECT r.rid, r.paid, r.flight1_id, r.flight2_id FROM Reservations_lizazak as r WHERE r.username = ? ORDER BY r.rid ASC";
-    this.getReservationList = conn.prepareStatement(getReservationListString);
+    // Statement for listing a user's reservations along with both of their flights.
+    String getReservationListString = "SELECT r.rid, r.paid, "
+                                      + "f1.fid AS fid1, f1.day_of_month AS day1, f1.carrier_id AS cid1, f1.flight_num AS fnum1, "
+                                      + "f1.origin_city AS origin1, f1.dest_city AS dest1, f1.actual_time AS time1, f1.capacity AS cap1, f1.price AS price1, "
+                                      + "f2.fid AS fid2, f2.day_of_month AS day2, f2.carrier_id AS cid2, f2.flight_num AS fnum2, "
+                                      + "f2.origin_city AS origin2, f2.dest_city AS dest2, f2.actual_time AS time2, f2.capacity AS cap2, f2.price AS price2 "
+                                      + "FROM {Reservations} AS r "
+                                      + "JOIN FLIGHTS AS f1 ON f1.fid = r.flight1_id "
+                                      + "LEFT JOIN FLIGHTS AS f2 ON f2.fid = r.flight2_id "
+                                      + "WHERE r.username = ? ORDER BY r.rid ASC";
+    this.getReservationList = prepare(getReservationListString);
   }
 
   /* See QueryAbstract.java for javadoc */
   public String transaction_login(String username, String password) {
     // TODO: YOUR CODE HERE
     // Check if a user is already logged in during this session.
-    if (this.loggedIn) {
+    if (this.session.loggedIn) {
       return "User already logged in\n";
     }
     
@@ -174,21 +315,32 @@ public class Query extends QueryAbstract {
       if (userFound.next()) {
         // Get the hashed password stored for the given username 
         byte[] hashedPassword = userFound.getBytes("hashedPassword");
+        userFound.close();
 
-        // Check that the provided password matches the stored one.
-        boolean passwordIsCorrect = PasswordUtils.plaintextMatchesSaltedHash(password, hashedPassword);
+        // Check that the provided password matches the stored one.  If the hashing pool is
+        // saturated, refuse the login rather than wait.
+        boolean passwordIsCorrect;
+        try {
+          passwordIsCorrect = this.passwordHasher.plaintextMatchesSaltedHash(password,
+                                                                             hashedPassword);
+        } catch (PasswordHasher.Saturated e) {
+          return "Login failed\n";
+        }
 
         // If the password is incorrect, return an error.
         if (!passwordIsCorrect) {
-          userFound.close();
           return "Login failed\n";
         }
 
+        // Upgrade hashes made with an older policy now that we know the password.
+        if (PasswordUtils.needsRehash(hashedPassword)) {
+          this.rehashPassword(username, password);
+        }
+
         // Set logged in to true for the current session.
-        this.loggedIn = true;
+        this.session.loggedIn = true;
         // Set the current user to be used in book.
-        this.currentUser = username;
-        userFound.close();
+        this.session.currentUser = username;
         return "Logged in as " + username + "\n";
       }
 
@@ -198,11 +350,27 @@ public class Query extends QueryAbstract {
       return "Login failed\n";
 
     } catch(SQLException e) {
-      e.printStackTrace();
+      this.reportSqlError(e);
     }
     return "Login failed\n";
   }
 
+  // Replace the user's stored hash with one made under the current policy. Failure (or a
+  // saturated hashing pool) only leaves the old, still valid, hash in place.
+  private void rehashPassword(String username, String password) {
+    try {
+      byte[] saltedPassword = this.passwordHasher.saltAndHashPassword(password);
+      this.updatePassword.clearParameters();
+      this.updatePassword.setBytes(1, saltedPassword);
+      this.updatePassword.setString(2, username);
+      this.updatePassword.executeUpdate();
+    } catch (PasswordHasher.Saturated e) {
+      // Try again on a later login
+    } catch (SQLException e) {
+      e.printStackTrace();
+    }
+  }
+
   /* See QueryAbstract.java for javadoc */
   public String transaction_createCustomer(String username, String password, int initAmount) {
     // TODO: YOUR CODE HERE
@@ -214,175 +382,159 @@ public class Query extends QueryAbstract {
     // Usernames are case-insensitive, so convert input to lowercase.
     username = username.toLowerCase();
 
-    ResultSet existingUsers = null;
+    // Refuse a taken username before paying for a hash.  Creating the same user concurrently is
+    // still caught by the insert's primary key.
+    try {
+      if (this.userExists(username)) {
+        return "Failed to create user\n";
+      }
+    } catch (SQLException e) {
+      this.reportSqlError(e);
+      return "Failed to create user\n";
+    }
 
+    // Hash outside of the transaction so that retries don't repeat it and locks aren't held
+    // while it runs.  Refuse the request if the hashing pool is saturated.
+    byte[] saltedPassword;
     try {
-      // Start a transaction
-      this.conn.setAutoCommit(false);
+      saltedPassword = this.passwordHasher.saltAndHashPassword(password);
+    } catch (PasswordHasher.Saturated e) {
+      return "Failed to create user\n";
+    }
 
-      this.getUserIfExists.clearParameters();
-      this.getUserIfExists.setString(1, username);
-      existingUsers = this.getUserIfExists.executeQuery();
-      // If the username already exists, return an error
-      if (existingUsers.next()) {
-        this.conn.rollback();
-        return "Failed to create user\n";
+    final String newUsername = username;
+    try {
+      return this.runTransaction("create", () -> this.insertUser(newUsername, saltedPassword,
+                                                                 initAmount));
+    } catch (SQLException e) {
+      // Created by someone else since the check above
+      if (!dialect.isDuplicateKey(e)) {
+        this.reportSqlError(e);
       }
+    }
+    return "Failed to create user\n";
+  }
 
-      // Otherwise, add a new username to the database.
-      this.createUser.clearParameters();
+  // Whether the username is taken, read in auto-commit mode.
+  private boolean userExists(String username) throws SQLException {
+    this.getUserIfExists.clearParameters();
+    this.getUserIfExists.setString(1, username);
+    try (ResultSet existingUsers = this.getUserIfExists.executeQuery()) {
+      return existingUsers.next();
+    }
+  }
 
-      // Set the username to the given username.
-      this.createUser.setString(1, username);
+  // Transaction body of createCustomer.
+  private String insertUser(String username, byte[] saltedPassword, int initAmount)
+      throws SQLException {
+    // Add a new username to the database.
+    this.createUser.clearParameters();
 
-      // Get the hashed and salted password and set the saltedPassword.
-      byte[] saltedPassword = PasswordUtils.saltAndHashPassword(password);
-      this.createUser.setBytes(2, saltedPassword);
+    // Set the username to the given username.
+    this.createUser.setString(1, username);
 
-      // Set the balance to the initial amount.
-      this.createUser.setInt(3, initAmount);
+    // Set the hashed and salted password.
+    this.createUser.setBytes(2, saltedPassword);
 
-      // Execute the insert update.
-      this.createUser.executeUpdate();
+    // Set the balance to the initial amount.
+    this.createUser.setInt(3, initAmount);
 
-      // Commit this as a single transaction.
-      this.conn.commit();
+    // Execute the insert update.
+    this.createUser.executeUpdate();
 
-      return "Created user " + username + "\n";
-    } catch(SQLException e) {
-      if (isDeadlock(e)) {
-        // return this.transaction_createCustomer(username, password, initAmount);
-        return this.transaction_createCustomer(username, password, initAmount);
-      }
-      e.printStackTrace();
-    } finally {
-      if (existingUsers != null) {
-        try {
-          existingUsers.close();
-        } catch (SQLException e) {}
-      }
-      try {
-        this.conn.setAutoCommit(true);
-      } catch (SQLException e) {}
-    }
-    return "Failed to create user\n";
+    // Commit this as a single transaction.
+    this.conn.commit();
+
+    return "Created user " + username + "\n";
   }
 
   /* See QueryAbstract.java for javadoc */
   public String transaction_search(String originCity, String destinationCity, 
                                    boolean directFlight, int dayOfMonth,
                                    int numberOfItineraries) {
-    // WARNING: the below code is insecure (it's susceptible to SQL injection attacks) AND only
-    // handles searches for direct flights.  We are providing it *only* as an example of how
-    // to use JDBC; you are required to replace it with your own secure implementation.
-    //
-    // TODO: YOUR CODE HERE
-    List<Itinerary> itineraryList = new ArrayList<>();
+    // Both sources below produce itineraries already ordered by (total time, fid1, fid2), so
+    // the results are merged in one pass and never sorted.
+    List<Itinerary> directItineraries = new ArrayList<>();
+    List<Itinerary> indirectItineraries = new ArrayList<>();
+
+    // As when the count went straight into TOP: an error if negative, nothing if zero
+    if (numberOfItineraries < 0) {
+      return "Failed to search\n";
+    }
+    if (numberOfItineraries == 0) {
+      return "No flights match your selection\n";
+    }
 
-    // one hop itineraries
     try {
-      this.getDirectFlights.clearParameters();
-      // Set the number of itineraries to be retrieved.
-      this.getDirectFlights.setInt(1, numberOfItineraries);
-      // Set the origin city.
-      this.getDirectFlights.setString(2, originCity);
-      // Set the destination city.
-      this.getDirectFlights.setString(3, destinationCity);
-      // Set the day of month.
-      this.getDirectFlights.setInt(4, dayOfMonth);
-      ResultSet oneHopResults = this.getDirectFlights.executeQuery();
-
-      while (oneHopResults.next()) {
-        int result_fid = oneHopResults.getInt("fid");
-        String result_carrierId = oneHopResults.getString("carrier_id");
-        String result_flightNum = oneHopResults.getString("flight_num");
-        int result_time = oneHopResults.getInt("actual_time");
-        int result_capacity = oneHopResults.getInt("capacity");
-        int result_price = oneHopResults.getInt("price");
-
-        Flight newFlight = new Flight(result_fid, dayOfMonth, result_carrierId,
-                                      result_flightNum, originCity, destinationCity,
-                                      result_time, result_capacity, result_price);
-
-        Itinerary newItinerary = new Itinerary(newFlight, null);
-
-        itineraryList.add(newItinerary);
-
-        // Decrease number of itineraries needed (since we always prefer direct flights).
-        numberOfItineraries--;
-      }
-      oneHopResults.close();
-
-      // If we can still generate more itineraries, start generating indirect itineraries.
-      if (numberOfItineraries > 0 && !directFlight) {
-        // two hop itineraries
-        this.getIndirectFlights.clearParameters();
-        // Set the number of itineraries to be retrieved.
-        this.getIndirectFlights.setInt(1, numberOfItineraries);
-        // Set the origin city.
-        this.getIndirectFlights.setString(2, originCity);
-        // Set the destination city.
-        this.getIndirectFlights.setString(3, destinationCity);
-        // Set the day of month.
-        this.getIndirectFlights.setInt(4, dayOfMonth);
-        ResultSet twoHopResults = this.getIndirectFlights.executeQuery();
-
-        while (twoHopResults.next()) {
-          int fid1 = twoHopResults.getInt("fid1");
-          String carrierId1 = twoHopResults.getString("cid1");
-          String flightNum1 = twoHopResults.getString("fnum1");
-          // This is the intermediary city in the indirect flight
-          String destCity1 = twoHopResults.getString("dest1");
-          int time1 = twoHopResults.getInt("time1");
-          int capacity1 = twoHopResults.getInt("cap1");
-          int price1 = twoHopResults.getInt("price1");
-
-          Flight flight1 = new Flight(fid1, dayOfMonth, carrierId1, flightNum1, 
-                            originCity, destCity1, time1, capacity1, price1);
-
-          int fid2 = twoHopResults.getInt("fid2");
-          String carrierId2 = twoHopResults.getString("cid2");
-          String flightNum2 = twoHopResults.getString("fnum2");
-          // The destination of the first flight is the origin of the 2nd flight.
-          String originCity2 = destCity1;
-          int time2 = twoHopResults.getInt("time2");
-          int capacity2 = twoHopResults.getInt("cap2");
-          int price2 = twoHopResults.getInt("price2");
-
-          Flight flight2 = new Flight(fid2, dayOfMonth, carrierId2, flightNum2, 
-                            originCity2, destinationCity, time2, capacity2, price2);
-          
-          // Make a new itinerary based on the 2 flights
-          Itinerary newItinerary = new Itinerary(flight1, flight2);
-
-          itineraryList.add(newItinerary);
+      SearchCache.Entry cached = this.searchCache.get(originCity, destinationCity, directFlight,
+                                                      dayOfMonth, numberOfItineraries);
+      if (cached != null) {
+        directItineraries = cached.directItineraries(numberOfItineraries);
+        indirectItineraries =
+            cached.indirectItineraries(numberOfItineraries - directItineraries.size());
+      } else {
+        // one hop itineraries
+        FlightIndex index = this.getFlightIndex();
+        if (index != null) {
+          for (Flight newFlight : index.directFlights(originCity, destinationCity, dayOfMonth,
+                                                      numberOfItineraries)) {
+            directItineraries.add(new Itinerary(newFlight, null));
+          }
+        } else {
+          this.addDirectItineraries(directItineraries, originCity, destinationCity, dayOfMonth,
+                                    numberOfItineraries);
+        }
+
+        // Direct flights are always preferred, so only the remaining slots go to two hops.
+        int remaining = numberOfItineraries - directItineraries.size();
+        if (remaining > 0 && !directFlight) {
+          // two hop itineraries
+          if (index != null) {
+            indirectItineraries = TwoHopSearch.search(index, originCity, destinationCity,
+                                                      dayOfMonth, remaining);
+          } else {
+            this.addIndirectItineraries(indirectItineraries, originCity, destinationCity,
+                                        dayOfMonth, remaining);
+          }
         }
-        twoHopResults.close();
+
+        this.searchCache.put(originCity, destinationCity, directFlight, dayOfMonth,
+                             numberOfItineraries, directItineraries, indirectItineraries);
       }
 
       // Check if there are no possible itineraries for these parameters.
-      if (itineraryList.isEmpty()) {
+      if (directItineraries.isEmpty() && indirectItineraries.isEmpty()) {
         return "No flights match your selection\n";
       }
 
-      // Sort the itineraries based on the custom compareTo method
-      Collections.sort(itineraryList);
-
-      StringBuffer itineraryString = new StringBuffer();
-      // Add all itineraries to string to returb.
-      for (int i = 0; i < itineraryList.size(); i++) {
-        Itinerary itinerary = itineraryList.get(i);
-        itinerary.itinerary_number = i;
-        itineraryString.append(itinerary.toString());
+      // Merge the two sorted sources, numbering and rendering as we go.
+      List<Itinerary> itineraryList =
+          new ArrayList<>(directItineraries.size() + indirectItineraries.size());
+      StringBuilder itineraryString = this.searchOutput;
+      itineraryString.setLength(0);
+      int i = 0;
+      int j = 0;
+      while (i < directItineraries.size() || j < indirectItineraries.size()) {
+        Itinerary next;
+        if (j >= indirectItineraries.size()
+            || (i < directItineraries.size()
+                && directItineraries.get(i).compareTo(indirectItineraries.get(j)) <= 0)) {
+          next = directItineraries.get(i++);
+        } else {
+          next = indirectItineraries.get(j++);
+        }
+        next.itinerary_number = itineraryList.size();
+        next.appendTo(itineraryString);
+        itineraryList.add(next);
       }
 
       // Track last searched itineraries to be used if the user wants to book 
       // a specific flight
-      this.lastSearchedItineraries = itineraryList;
+      this.session.lastSearchedItineraries = itineraryList;
 
       return itineraryString.toString();
     } catch (SQLException e) {
-      e.printStackTrace();
+      this.reportSqlError(e);
     }
 
     return "Failed to search\n";
@@ -391,11 +543,11 @@ public class Query extends QueryAbstract {
   /* See QueryAbstract.java for javadoc */
   public String transaction_book(int itineraryId) {
     // TODO: YOUR CODE HERE
-    if (!this.loggedIn) {
+    if (!this.session.loggedIn) {
       return "Cannot book reservations, not logged in\n";
     }
 
-    if (this.lastSearchedItineraries == null) {
+    if (this.session.lastSearchedItineraries == null) {
       return "No such itinerary " + itineraryId + "\n";
     }
 
@@ -409,59 +561,71 @@ public class Query extends QueryAbstract {
     Flight flight1 = currentItinerary.flight1;
     Flight flight2 = currentItinerary.flight2;
 
+    try {
+      if (this.bookingJournal != null) {
+        return this.bookFromInventory(flight1, flight2);
+      }
+      if (this.bookingCoordinator != null) {
+        return this.bookInGroup(flight1, flight2);
+      }
+      // The reservation ID is allocated by the first attempt that gets as far as inserting, and
+      // reused by any retry, so that retries don't use up IDs
+      int[] reservationId = new int[1];
+      return this.runTransaction("book",
+                                 () -> this.insertReservation(flight1, flight2, reservationId));
+    } catch (SQLException e) {
+      this.reportSqlError(e);
+    }
+    return "Booking failed\n";
+  }
+
+  // Transaction body of book.  reservationId holds the booking's ID once allocated, 0 before.
+  private String insertReservation(Flight flight1, Flight flight2, int[] reservationId)
+      throws SQLException {
     ResultSet existingBookings = null;
-    ResultSet seatsTaken1 = null;
-    ResultSet seatsTaken2 = null;
+    int newResId;
+    boolean seatsOnLedger = false;
 
     try {
-      // Start a transaction.
-      this.conn.setAutoCommit(false);
-
       // Check if a booking for the same day already exists for this user.
       this.getReservationsForDay.clearParameters();
       this.getReservationsForDay.setInt(1, flight1.dayOfMonth);
-      this.getReservationsForDay.setString(2, this.currentUser);
+      this.getReservationsForDay.setString(2, this.session.currentUser);
       existingBookings = this.getReservationsForDay.executeQuery();
       if (existingBookings.next()) {
         this.conn.rollback();
         return "You cannot book two flights in the same day\n";
       }
 
-      // If the first flight on this reservation is at capacity, return an error.
-      this.getSeatsTakenFlight1.clearParameters();
-      this.getSeatsTakenFlight1.setInt(1, flight1.fid);
-      seatsTaken1 = this.getSeatsTakenFlight1.executeQuery();
-      if (seatsTaken1.next()) {
-        int currentCap1 = seatsTaken1.getInt("count");
-        if (checkFlightCapacity(flight1.fid) <= currentCap1) {
+      // Take a seat on each flight; fails if either is at capacity.
+      if (this.seatLedger != null) {
+        // Counted on the primary shard, outside this transaction
+        seatsOnLedger = this.seatLedger.reserve(flight1.fid, flight1.capacity,
+                                                flight2 == null ? 0 : flight2.fid,
+                                                flight2 == null ? 0 : flight2.capacity);
+        if (!seatsOnLedger) {
           this.conn.rollback();
           return "Booking failed\n";
         }
+      } else if (!this.reserveSeat(flight1.fid, flight1.capacity)
+                 || (flight2 != null && !this.reserveSeat(flight2.fid, flight2.capacity))) {
+        this.conn.rollback();
+        return "Booking failed\n";
       }
 
-      // If the 2nd flight exists, if it's at capacity, return an error.
-      if (flight2 != null) {
-        this.getSeatsTakenFlight2.clearParameters();
-        this.getSeatsTakenFlight2.setInt(1, flight2.fid);
-        seatsTaken2 = this.getSeatsTakenFlight2.executeQuery();
-        if (seatsTaken2.next()) {
-          int currentCap2 = seatsTaken2.getInt("count");
-          if (checkFlightCapacity(flight2.fid) <= currentCap2) {
-            this.conn.rollback();
-            return "Booking failed\n";
-          }
-        }
+      // Reservation IDs come from the shared block allocator, not the database.
+      if (reservationId[0] == 0) {
+        reservationId[0] = this.ridAllocator.nextId();
       }
-
-      int newResId = this.getNextResID();
+      newResId = reservationId[0];
 
       // Otherwise, add a new booking to the database.
       this.addReserveration.clearParameters();
       // Set the reservation id.
       this.addReserveration.setInt(1, newResId);
       // Set the username to the given username.
-      assert this.currentUser != null : "We must have a user if we are logged in.";
-      this.addReserveration.setString(2, this.currentUser);
+      assert this.session.currentUser != null : "We must have a user if we are logged in.";
+      this.addReserveration.setString(2, this.session.currentUser);
       // Set it to be unpaid.
       this.addReserveration.setInt(3, 0);
       // Set the flight1 fid and flight2 fids.
@@ -480,272 +644,463 @@ public class Query extends QueryAbstract {
       this.conn.commit();
 
       return "Booked flight(s), reservation ID: " + newResId + "\n";
-    } catch(SQLException e) {
-      // Undo any changes that may have been made.
-      try {
-        this.conn.rollback();
-      } catch (SQLException b) {}
-
-      // Check and retry if there is a deadlock.
-      if (isDeadlock(e)) {
-        return this.transaction_book(itineraryId);
+    } catch (SQLException e) {
+      // The seats taken on the ledger were not used; give them back.
+      if (seatsOnLedger) {
+        try {
+          this.seatLedger.release(flight1.fid, flight2 == null ? 0 : flight2.fid);
+        } catch (SQLException b) {}
       }
-      e.printStackTrace();
+      throw e;
     } finally {
       if (existingBookings != null) {
         try {
           existingBookings.close();
         } catch (SQLException e) {}
       }
-      if (seatsTaken1 != null) {
-        try {
-          seatsTaken1.close();
-        } catch (SQLException e) {}
+    }
+  }
+
+  // Body of book in the inventory booking mode: seats are taken in process and the booking is
+  // journaled, reaching the database in the background.
+  private String bookFromInventory(Flight flight1, Flight flight2) throws SQLException {
+    String username = this.session.currentUser;
+    int fid2 = flight2 == null ? 0 : flight2.fid;
+    int capacity2 = flight2 == null ? 0 : flight2.capacity;
+
+    // One booking per user at a time, so that two can't both pass the same-day check
+    synchronized (this.bookingJournal.lockFor(username)) {
+      if (this.bookingJournal.hasPendingOnDay(username, flight1.dayOfMonth)
+          || this.hasReservationOnDay(flight1.dayOfMonth)) {
+        return "You cannot book two flights in the same day\n";
       }
-      if (seatsTaken2 != null) {
-        try {
-          seatsTaken2.close();
-        } catch (SQLException e) {}
+
+      if (!this.seatInventory.reserve(flight1.fid, flight1.capacity, fid2, capacity2,
+                                      this::countBookedSeats)) {
+        return "Booking failed\n";
       }
-      // Set autocommit to true so future transactions are auto-committed.
+
+      int newResId;
       try {
-        this.conn.setAutoCommit(true);
-      } catch (SQLException e) {}
+        newResId = this.ridAllocator.nextId();
+        this.bookingJournal.append(newResId, username, flight1.dayOfMonth, flight1.fid, fid2);
+      } catch (SQLException e) {
+        // Not booked; hand the seats out again.
+        this.seatInventory.release(flight1.fid, fid2);
+        throw e;
+      }
+      return "Booked flight(s), reservation ID: " + newResId + "\n";
+    }
+  }
+
+  // Body of book in the group booking mode: the booking is decided and written together with
+  // any others made at the same time.
+  private String bookInGroup(Flight flight1, Flight flight2) throws SQLException {
+    int outcome = this.bookingCoordinator.book(this.session.currentUser, flight1.dayOfMonth,
+                                               flight1.fid, flight1.capacity,
+                                               flight2 == null ? 0 : flight2.fid,
+                                               flight2 == null ? 0 : flight2.capacity);
+    if (outcome == BookingCoordinator.SAME_DAY) {
+      return "You cannot book two flights in the same day\n";
+    }
+    if (outcome == BookingCoordinator.NO_SEATS) {
+      return "Booking failed\n";
+    }
+    return "Booked flight(s), reservation ID: " + outcome + "\n";
+  }
+
+  /**
+   * Whether the current user has a reservation in the database on the given day
+   */
+  private boolean hasReservationOnDay(int dayOfMonth) throws SQLException {
+    this.getReservationsForDay.clearParameters();
+    this.getReservationsForDay.setInt(1, dayOfMonth);
+    this.getReservationsForDay.setString(2, this.session.currentUser);
+    try (ResultSet existingBookings = this.getReservationsForDay.executeQuery()) {
+      return existingBookings.next();
+    }
+  }
+
+  /**
+   * Seats booked on the given flight, as recorded in the database
+   */
+  private int countBookedSeats(int fid) throws SQLException {
+    this.countBookedSeats.clearParameters();
+    this.countBookedSeats.setInt(1, fid);
+    this.countBookedSeats.setInt(2, fid);
+    this.countBookedSeats.setInt(3, fid);
+    try (ResultSet results = this.countBookedSeats.executeQuery()) {
+      results.next();
+      return results.getInt("booked");
     }
-    return "Booking failed\n";
   }
 
   /* See QueryAbstract.java for javadoc */
   public String transaction_pay(int reservationId) {
     // TODO: YOUR CODE HERE
-    if (!loggedIn) {
+    if (!this.session.loggedIn) {
       return "Cannot pay, not logged in\n";
     }
 
     try {
-      this.getReservationFromResID.clearParameters();
-      this.getReservationFromResID.setInt(1, reservationId);
-
-      ResultSet currentReservation = this.getReservationFromResID.executeQuery();
-      if (currentReservation.next()) {
-        String username = currentReservation.getString("username");
-        int paid = currentReservation.getInt("paid");
-        int fid1 = currentReservation.getInt("flight1_id");
-        int fid2 = currentReservation.getInt("flight2_id");
-        if (currentReservation.wasNull()) {
-          fid2 = -1;
-        }
+      if (this.bookingJournal != null) {
+        // The reservation may still be on its way to the database.
+        this.bookingJournal.awaitFlushed(this.session.currentUser);
+      }
+      if (!dialect.supportsPayBatch()) {
+        return this.runTransaction("pay", () -> this.payReservationInSteps(reservationId));
+      }
+      // The whole payment runs server-side, in one round trip and one transaction.
+      return this.runStatement("pay", () -> this.payReservation(reservationId));
+    } catch(SQLException e) {
+      this.reportSqlError(e);
+    }
+    return "Failed to pay for reservation " + reservationId + "\n";
+  }
 
-        // Check if username does not match currently logged in user or the reservation is already paid.
-        if (!username.equals(this.currentUser) || paid == 1) {
-          return "Cannot find unpaid reservation " + reservationId + " under user: " + this.currentUser + "\n";
-        }
+  // Body of pay: run the payment batch and turn its outcome into a response.
+  private String payReservation(int reservationId) throws SQLException {
+    this.payReservation.clearParameters();
+    this.payReservation.setInt(1, reservationId);
+    this.payReservation.setString(2, this.session.currentUser);
+    this.payReservation.setString(3, this.session.currentUser);
+    this.payReservation.setString(4, this.session.currentUser);
+
+    this.serverBatchRan();
+    try (ResultSet outcome = this.payReservation.executeQuery()) {
+      outcome.next();
+      int status = outcome.getInt("status");
+      int balance = outcome.getInt("balance");
+      int cost = outcome.getInt("cost");
+
+      if (status == PAY_NOT_FOUND) {
+        // No such reservation, not this user's, or already paid.
+        return "Cannot find unpaid reservation " + reservationId + " under user: " + this.session.currentUser + "\n";
+      }
+      if (status == PAY_INSUFFICIENT_BALANCE) {
+        return "User has only " + balance + " in account but itinerary costs " + cost + "\n";
+      }
+      return "Paid reservation: " + reservationId + " remaining balance: " + balance + "\n";
+    }
+  }
 
-        // Check if not enough balance for flight(s).
-        int flightPrice1 = this.getItineraryPrice(fid1);
-        int flightPrice2 = fid2 == -1 ? 0 : this.getItineraryPrice(fid2);
-        int totalFlightPrice = flightPrice1 + flightPrice2;
-        int currentBalance = this.getUserBalance();
-        if (currentBalance - totalFlightPrice < 0) {
-          return "User has only " + currentBalance + " in account but itinerary costs " + totalFlightPrice + "\n";
-        }
+  // Body of pay without the batch: the same steps, as separate statements in one transaction.
+  // Prices come from the flight cache.
+  private String payReservationInSteps(int reservationId) throws SQLException {
+    String notFound = "Cannot find unpaid reservation " + reservationId + " under user: " + this.session.currentUser + "\n";
+
+    int cost;
+    this.getUnpaidReservation.clearParameters();
+    this.getUnpaidReservation.setInt(1, reservationId);
+    this.getUnpaidReservation.setString(2, this.session.currentUser);
+    try (ResultSet reservation = this.getUnpaidReservation.executeQuery()) {
+      if (!reservation.next()) {
+        this.conn.rollback();
+        return notFound;
+      }
+      cost = this.checkFlightPrice(reservation.getInt("flight1_id"));
+      int fid2 = reservation.getInt("flight2_id");
+      if (!reservation.wasNull()) {
+        cost += this.checkFlightPrice(fid2);
+      }
+    }
 
-        // Update reservation to be paid.
-        this.updateReservationPayment(reservationId);
+    // Claim the reservation first, so that a concurrent payment of it finds it paid.
+    this.markPaid.clearParameters();
+    this.markPaid.setInt(1, reservationId);
+    if (this.markPaid.executeUpdate() == 0) {
+      this.conn.rollback();
+      return notFound;
+    }
 
-        // Update user balance to pay for reservation.
-        int newBalance = currentBalance - totalFlightPrice;
-        this.updateUserBalance(this.currentUser, newBalance);
+    this.debitBalance.clearParameters();
+    this.debitBalance.setInt(1, cost);
+    this.debitBalance.setString(2, this.session.currentUser);
+    this.debitBalance.setInt(3, cost);
+    boolean debited = this.debitBalance.executeUpdate() == 1;
+    if (!debited) {
+      this.conn.rollback();
+    }
 
-        return "Paid reservation: " + reservationId + " remaining balance: " + newBalance + "\n";
-      } else {
-        // No existing res with this id
-        return "Cannot find unpaid reservation " + reservationId + " under user: " + this.currentUser + "\n";
-      }
+    int balance;
+    this.getBalance.clearParameters();
+    this.getBalance.setString(1, this.session.currentUser);
+    try (ResultSet user = this.getBalance.executeQuery()) {
+      user.next();
+      balance = user.getInt("balance");
+    }
+    this.conn.commit();
 
-    } catch(SQLException e) {
-      e.printStackTrace();
+    if (!debited) {
+      return "User has only " + balance + " in account but itinerary costs " + cost + "\n";
     }
-    return "Failed to pay for reservation " + reservationId + "\n";
+    return "Paid reservation: " + reservationId + " remaining balance: " + balance + "\n";
   }
 
   /* See QueryAbstract.java for javadoc */
   public String transaction_reservations() {
     // TODO: YOUR CODE HERE
-    if (!this.loggedIn) {
+    if (!this.session.loggedIn) {
       return "Cannot view reservations, not logged in\n";
     }
 
     // If someone is logged in, there must be a current user;
-    assert this.currentUser != null;
+    assert this.session.currentUser != null;
 
+    // One query returns every reservation together with its flights.
     try {
+      if (this.bookingJournal != null) {
+        // Recent bookings may still be on their way to the database.
+        this.bookingJournal.awaitFlushed(this.session.currentUser);
+      }
       this.getReservationList.clearParameters();
-      this.getReservationList.setString(1, this.currentUser);
+      this.getReservationList.setString(1, this.session.currentUser);
       ResultSet reservations = this.getReservationList.executeQuery();
 
-      StringBuffer sb = new StringBuffer();
+      StringBuilder sb = new StringBuilder();
       while (reservations.next()) {
         int result_rid = reservations.getInt("rid");
         int result_paid = reservations.getInt("paid");
-        int result_fid1 = reservations.getInt("flight1_id");
-        int result_fid2 = reservations.getInt("flight2_id");
         boolean paid = result_paid == 1;
-        String flightString1 = this.getFlightString(result_fid1);
-        String flightString2 = this.getFlightString(result_fid2);
-        
-        if (flightString2 == null) {
-          sb.append("Reservation " + result_rid + " paid: " + paid + ":\n" + flightString1 + "\n");
-        } else {
-          sb.append("Reservation " + result_rid + " paid: " + paid + ":\n" + flightString1 + "\n" 
-                    + flightString2 + "\n");
+        String flightString1 = this.getFlightString(reservations, "1");
+        String flightString2 = this.getFlightString(reservations, "2");
+
+        sb.append("Reservation ").append(result_rid).append(" paid: ").append(paid)
+            .append(":\n").append(flightString1).append('\n');
+        if (flightString2 != null) {
+          sb.append(flightString2).append('\n');
         }
       }
+      reservations.close();
 
       return sb.toString();
 
     } catch (SQLException e) {
-      e.printStackTrace();
+      this.reportSqlError(e);
     }
     return "Failed to retrieve reservations\n";
   }
 
   /**
-   * Example utility function that uses prepared statements
+   * Price of the given flight, from the shared flight cache
+   */
+  private int checkFlightPrice(int fid) throws SQLException {
+    Flight flight = this.getFlight(fid);
+    if (flight == null) {
+      throw new SQLException("No such flight: " + fid);
+    }
+    return flight.price;
+  }
+
+  /**
+   * Metadata of the given flight, from the shared flight cache, querying FLIGHTS only on a miss
+   *
+   * @return null if there is no such flight
    */
-  private int checkFlightCapacity(int fid) throws SQLException {
-    flightCapacityStmt.clearParameters();
-    flightCapacityStmt.setInt(1, fid);
+  private Flight getFlight(int fid) throws SQLException {
+    Flight flight = this.flightCache.get(fid);
+    if (flight != null) {
+      return flight;
+    }
 
-    ResultSet results = flightCapacityStmt.executeQuery();
-    results.next();
-    int capacity = results.getInt("capacity");
+    flightByIdStmt.clearParameters();
+    flightByIdStmt.setInt(1, fid);
+    ResultSet results = flightByIdStmt.executeQuery();
+    if (results.next()) {
+      flight = new Flight(results.getInt("fid"), results.getInt("day_of_month"),
+                          results.getString("carrier_id"), results.getString("flight_num"),
+                          results.getString("origin_city"), results.getString("dest_city"),
+                          results.getInt("actual_time"), results.getInt("capacity"),
+                          results.getInt("price"));
+      this.flightCache.put(flight);
+    }
     results.close();
 
-    return capacity;
+    return flight;
   }
 
-  private Itinerary getItinerary(int id) {
-    // Go through each itinerary and return the itinerary which matches
-    // the given id
-    for (Itinerary currentItinerary: this.lastSearchedItineraries) {
-      if (currentItinerary.itinerary_number == id) {
-        return currentItinerary;
-      }
+  /**
+   * Bind the parameters of a flight search query, with the row limit wherever the dialect puts
+   * it.
+   */
+  private void setSearchParameters(PreparedStatement statement, String originCity,
+                                   String destinationCity, int dayOfMonth,
+                                   int numberOfItineraries) throws SQLException {
+    int index = 1;
+    // Set the number of itineraries to be retrieved.
+    if (!dialect.limitIsLastParameter()) {
+      statement.setInt(index++, numberOfItineraries);
+    }
+    // Set the origin city.
+    statement.setString(index++, originCity);
+    // Set the destination city.
+    statement.setString(index++, destinationCity);
+    // Set the day of month.
+    statement.setInt(index++, dayOfMonth);
+    if (dialect.limitIsLastParameter()) {
+      statement.setInt(index, numberOfItineraries);
     }
-    // If no itineraries matched the id, return null.
-    return null;
   }
 
-  private int getNextResID() {
-    ResultSet nextID = null;
-
-    try {
-      this.getNextResID.clearParameters();
-      nextID = this.getNextResID.executeQuery();
-      if (nextID.next()) {
-        return nextID.getInt("count") + 1;
-      }
-    } catch (SQLException e) {
-      e.printStackTrace();
-    } finally {
-      if (nextID != null) {
-        try {
-          nextID.close();
-        } catch (SQLException e) {}
-      }
+  /**
+   * Query FLIGHTS for direct flights and append them to itineraryList.
+   *
+   * @return the number of itineraries added
+   */
+  private int addDirectItineraries(List<Itinerary> itineraryList, String originCity,
+                                   String destinationCity, int dayOfMonth,
+                                   int numberOfItineraries) throws SQLException {
+    int added = 0;
+    this.getDirectFlights.clearParameters();
+    this.setSearchParameters(this.getDirectFlights, originCity, destinationCity, dayOfMonth,
+                             numberOfItineraries);
+    ResultSet oneHopResults = this.getDirectFlights.executeQuery();
+
+    while (oneHopResults.next()) {
+      int result_fid = oneHopResults.getInt("fid");
+      String result_carrierId = oneHopResults.getString("carrier_id");
+      String result_flightNum = oneHopResults.getString("flight_num");
+      int result_time = oneHopResults.getInt("actual_time");
+      int result_capacity = oneHopResults.getInt("capacity");
+      int result_price = oneHopResults.getInt("price");
+
+      Flight newFlight = new Flight(result_fid, dayOfMonth, result_carrierId,
+                                    result_flightNum, originCity, destinationCity,
+                                    result_time, result_capacity, result_price);
+
+      itineraryList.add(new Itinerary(newFlight, null));
+
+      // Decrease number of itineraries needed (since we always prefer direct flights).
+      added++;
     }
-    return 1;
+    oneHopResults.close();
+    return added;
   }
 
-  // Retrieves the cost for an itinerary with one flight
-  private int getItineraryPrice(int fid) {
-    try {
-      this.getFlightFromID.clearParameters();
-      this.getFlightFromID.setInt(1, fid);
-
-      ResultSet flight = this.getFlightFromID.executeQuery();
-      if (flight.next()) {
-        return flight.getInt("price");
-      }
-    } catch (SQLException e) {
-      e.printStackTrace();
+  /**
+   * Query FLIGHTS for two-hop itineraries and append them to itineraryList.
+   */
+  private void addIndirectItineraries(List<Itinerary> itineraryList, String originCity,
+                                      String destinationCity, int dayOfMonth,
+                                      int numberOfItineraries) throws SQLException {
+    this.getIndirectFlights.clearParameters();
+    this.setSearchParameters(this.getIndirectFlights, originCity, destinationCity, dayOfMonth,
+                             numberOfItineraries);
+    ResultSet twoHopResults = this.getIndirectFlights.executeQuery();
+
+    while (twoHopResults.next()) {
+      int fid1 = twoHopResults.getInt("fid1");
+      String carrierId1 = twoHopResults.getString("cid1");
+      String flightNum1 = twoHopResults.getString("fnum1");
+      // This is the intermediary city in the indirect flight
+      String destCity1 = twoHopResults.getString("dest1");
+      int time1 = twoHopResults.getInt("time1");
+      int capacity1 = twoHopResults.getInt("cap1");
+      int price1 = twoHopResults.getInt("price1");
+
+      Flight flight1 = new Flight(fid1, dayOfMonth, carrierId1, flightNum1, 
+                        originCity, destCity1, time1, capacity1, price1);
+
+      int fid2 = twoHopResults.getInt("fid2");
+      String carrierId2 = twoHopResults.getString("cid2");
+      String flightNum2 = twoHopResults.getString("fnum2");
+      // The destination of the first flight is the origin of the 2nd flight.
+      String originCity2 = destCity1;
+      int time2 = twoHopResults.getInt("time2");
+      int capacity2 = twoHopResults.getInt("cap2");
+      int price2 = twoHopResults.getInt("price2");
+
+      Flight flight2 = new Flight(fid2, dayOfMonth, carrierId2, flightNum2, 
+                        originCity2, destinationCity, time2, capacity2, price2);
+      
+      // Make a new itinerary based on the 2 flights
+      Itinerary newItinerary = new Itinerary(flight1, flight2);
+
+      itineraryList.add(newItinerary);
     }
-    return -1;
+    twoHopResults.close();
   }
 
-  private String getFlightString(int fid) {
+  /**
+   * Returns the shared in-memory flight index, or null if it is disabled or failed to load
+   * (in which case searches fall back to querying FLIGHTS).
+   */
+  private FlightIndex getFlightIndex() {
+    if (!this.useFlightIndex) {
+      return null;
+    }
     try {
-      this.getFlightFromID.clearParameters();
-      this.getFlightFromID.setInt(1, fid);
-
-      ResultSet flightResult = this.getFlightFromID.executeQuery();
-      if (flightResult.next()) {
-        // fid, day_of_month, carrier_id, flight, origin_city, dest_city, actual_time, capacity, price
-        int result_fid = flightResult.getInt("fid");
-        int dayOfMonth = flightResult.getInt("day_of_month");
-        String cid = flightResult.getString("carrier_id");
-        String flightNum = flightResult.getString("flight_num");
-        String originCity = flightResult.getString("origin_city");
-        String destCity = flightResult.getString("dest_city");
-        int time = flightResult.getInt("actual_time");
-        int capacity = flightResult.getInt("capacity");
-        int price = flightResult.getInt("price");
-
-        Flight flight = new Flight(result_fid, dayOfMonth, cid, flightNum, originCity, destCity, time, capacity, price);
-
-        return flight.toString();
-      }
+      return FlightIndex.get(this.conn);
     } catch (SQLException e) {
       e.printStackTrace();
+      this.useFlightIndex = false;
+      return null;
     }
-    return null;
   }
 
-  // Get current balance of currently logged in user.
-  private int getUserBalance() {
-    try {
-      this.getUserBalance.clearParameters();
-      this.getUserBalance.setString(1, this.currentUser);
-
-      ResultSet userBalance = this.getUserBalance.executeQuery();
-      if (userBalance.next()) {
-        return userBalance.getInt("balance");
-      }
-    } catch (SQLException e) {
-      e.printStackTrace();
+  /**
+   * Take one seat on the given flight, as part of the caller's transaction.
+   *
+   * @return false if the flight is already at capacity
+   */
+  private boolean reserveSeat(int fid, int capacity) throws SQLException {
+    this.reserveSeat.clearParameters();
+    this.reserveSeat.setInt(1, fid);
+    this.reserveSeat.setInt(2, capacity);
+    if (this.reserveSeat.executeUpdate() == 1) {
+      return true;
     }
-    return 0;
-  }
 
-  // Update reservation to be paid.
-  private void updateReservationPayment(int rid) {
-    try {
-      this.updateReservationPayment.clearParameters();
-      this.updateReservationPayment.setInt(1, rid);
-      this.updateReservationPayment.executeUpdate();
-    } catch (SQLException e) {
-      e.printStackTrace();
+    // Either the flight is full or nobody has booked it since the counter was introduced.  Only
+    // the latter counts the flight's reservations, once; a full flight is a key lookup.
+    this.getSeatCounter.clearParameters();
+    this.getSeatCounter.setInt(1, fid);
+    try (ResultSet counter = this.getSeatCounter.executeQuery()) {
+      if (counter.next()) {
+        return false;
+      }
     }
+    this.reserveFirstSeat.clearParameters();
+    this.reserveFirstSeat.setInt(1, fid);
+    this.reserveFirstSeat.setInt(2, fid);
+    this.reserveFirstSeat.setInt(3, fid);
+    this.reserveFirstSeat.setInt(4, capacity);
+    this.reserveFirstSeat.setInt(5, fid);
+    return this.reserveFirstSeat.executeUpdate() == 1;
   }
 
-  // Update balance of currently logged in user.
-  private void updateUserBalance(String username, int newBalance) {
-    try {
-      this.updateUserBalance.clearParameters();
-      this.updateUserBalance.setInt(1, newBalance);
-      this.updateUserBalance.setString(2, username);
-      this.updateUserBalance.executeUpdate();
-    } catch (SQLException e) {
-      e.printStackTrace();
+  private Itinerary getItinerary(int id) {
+    // Go through each itinerary and return the itinerary which matches
+    // the given id
+    for (Itinerary currentItinerary: this.session.lastSearchedItineraries) {
+      if (currentItinerary.itinerary_number == id) {
+        return currentItinerary;
+      }
     }
+    // If no itineraries matched the id, return null.
+    return null;
   }
 
   /**
-   * Utility function to determine whether an error was caused by a deadlock
+   * Rendered flight {@code n} (1 or 2) of a row of getReservationList, or null if the row has
+   * no such flight.  Flights are rendered once and then served from the shared cache.
    */
-  private static boolean isDeadlock(SQLException e) {
-    return e.getErrorCode() == 1205;
+  private String getFlightString(ResultSet row, String n) throws SQLException {
+    int fid = row.getInt("fid" + n);
+    if (row.wasNull()) {
+      return null;
+    }
+
+    String rendered = this.flightCache.getRendered(fid);
+    if (rendered == null) {
+      Flight flight = new Flight(fid, row.getInt("day" + n), row.getString("cid" + n),
+                                 row.getString("fnum" + n), row.getString("origin" + n),
+                                 row.getString("dest" + n), row.getInt("time" + n),
+                                 row.getInt("cap" + n), row.getInt("price" + n));
+      this.flightCache.put(flight);
+      rendered = flight.toString();
+    }
+    return rendered;
   }
 
   /**
@@ -753,7 +1108,7 @@ public class Query extends QueryAbstract {
    *
    * TODO(hctang): move this into QueryAbstract
    */
-  class Flight {
+  static class Flight {
     public int fid;
     public int dayOfMonth;
     public String carrierId;
@@ -779,16 +1134,27 @@ public class Query extends QueryAbstract {
     
     @Override
     public String toString() {
-      return "ID: " + fid + " Day: " + dayOfMonth + " Carrier: " + carrierId + " Number: "
-          + flightNum + " Origin: " + originCity + " Dest: " + destCity + " Duration: " + time
-          + " Capacity: " + capacity + " Price: " + price;
+      StringBuilder sb = new StringBuilder(128);
+      appendTo(sb);
+      return sb.toString();
+    }
+
+    /**
+     * Render this flight (in the same format as {@link #toString()}) onto sb.
+     */
+    void appendTo(StringBuilder sb) {
+      sb.append("ID: ").append(fid).append(" Day: ").append(dayOfMonth)
+          .append(" Carrier: ").append(carrierId).append(" Number: ").append(flightNum)
+          .append(" Origin: ").append(originCity).append(" Dest: ").append(destCity)
+          .append(" Duration: ").append(time).append(" Capacity: ").append(capacity)
+          .append(" Price: ").append(price);
     }
   }
 
   /**
    * A class that stores information about a single itinerary
    */
-  class Itinerary implements Comparable<Itinerary> {
+  static class Itinerary implements Comparable<Itinerary> {
     // TODO: add instance variables
     public int itinerary_number;
     public Flight flight1;
@@ -823,12 +1189,24 @@ public class Query extends QueryAbstract {
 
     @Override
     public String toString() {
-      String toReturn = "Itinerary " + itinerary_number + ": " + this.numberOfFlights() + " flight(s), " 
-                        + this.totalTime() + " minutes\n" + flight1.toString() + "\n";
+      StringBuilder sb = new StringBuilder(256);
+      appendTo(sb);
+      return sb.toString();
+    }
+
+    /**
+     * Render this itinerary (in the same format as {@link #toString()}) onto sb.
+     */
+    void appendTo(StringBuilder sb) {
+      sb.append("Itinerary ").append(itinerary_number).append(": ")
+          .append(this.numberOfFlights()).append(" flight(s), ").append(this.totalTime())
+          .append(" minutes\n");
+      flight1.appendTo(sb);
+      sb.append('\n');
       if (!this.isDirect()) {
-        toReturn += flight2.toString() + "\n";
+        flight2.appendTo(sb);
+        sb.append('\n');
       }
-      return toReturn;
     }
 
     public int compareTo(Itinerary other) {
@@ -844,6 +1222,11 @@ public class Query extends QueryAbstract {
         return fid1_difference;
       }
 
+      // A direct flight sorts before a two-hop itinerary starting with the same flight.
+      if (this.isDirect() || other.isDirect()) {
+        return (this.isDirect() ? 0 : 1) - (other.isDirect() ? 0 : 1);
+      }
+
       // Otherwise, choose flight 2 with the smaller fid value.
       return this.flight2.fid - other.flight2.fid;
     }
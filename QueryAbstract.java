@@ -1,21 +1,253 @@
 package flightapp;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.sql.*;
-import java.util.Properties;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
 
 public abstract class QueryAbstract {
-  // DB Connection
+  // DB Connection of the shard in use, seen through a transaction tracker.  One connection is
+  // leased from each shard's pool the first time the query needs that shard.
   protected Connection conn;
+  private final ShardRouter router;
+  private final ShardConnection[] shards;
+  private ShardConnection current;
 
-  // For checking for dangling transactions
-  private static final String TRANCOUNT_SQL = "SELECT @@TRANCOUNT AS tran_count";
+  // SQL differences of the database engine in use
+  protected final Dialect dialect;
+
+  // Names of the application's tables, for the placeholders in the query's SQL
+  private final SchemaManager schema;
+
+  // State of the user session this query is currently serving
+  protected Session session = new Session();
+
+  // Retry policy for transactions that fail with a retryable error (e.g. deadlock victim)
+  private final int txMaxAttempts;
+  private final long txBaseBackoffMillis;
+  private final long txMaxBackoffMillis;
+
+  // Per-command latency and outcome metrics, shared by every query in the process
+  private static final CommandMetrics LOGIN_METRICS = CommandMetrics.forCommand("login");
+  private static final CommandMetrics CREATE_METRICS = CommandMetrics.forCommand("create");
+  private static final CommandMetrics SEARCH_METRICS = CommandMetrics.forCommand("search");
+  private static final CommandMetrics BOOK_METRICS = CommandMetrics.forCommand("book");
+  private static final CommandMetrics PAY_METRICS = CommandMetrics.forCommand("pay");
+  private static final CommandMetrics RESERVATIONS_METRICS =
+      CommandMetrics.forCommand("reservations");
+
+  // Isolation levels of the commands that only read (search, reservations) and of the ones
+  // that write (login, create, book, pay)
+  private final int readIsolation;
+  private static final int WRITE_ISOLATION = Connection.TRANSACTION_SERIALIZABLE;
+
+  // The read isolation chosen by flightapp.isolation.read=auto, asked once per process
+  private static volatile Integer autoReadIsolation;
+
+  // The command now running on this query, its isolation level, and whether it has hit a
+  // database error
+  private CommandMetrics currentCommand;
+  private int commandIsolation = WRITE_ISOLATION;
+  private boolean sqlErrorInCommand;
+
+  // Per-operation transaction counters, shared by every query in the process
+  private static final Map<String, TransactionStats> TRANSACTION_STATS =
+      new ConcurrentHashMap<>();
+
+  /**
+   * How dangling transactions are detected after each command.  The client-side check is
+   * free; the server-side one costs a round trip and also sees transactions that server-side
+   * batches left open, so every mode but OFF asks the server after a command that ran one.
+   */
+  private enum DanglingCheck {
+    // No check
+    OFF,
+    // Client-side tracking, verified with the server after server-side batches only
+    CLIENT,
+    // Client-side tracking, verified with the server after every command
+    SERVER,
+    // Client-side tracking, verified with the server after every Nth command
+    SAMPLE
+  }
+
+  private final DanglingCheck danglingCheck;
+  private final int serverCheckEvery;
+  private int commandsSinceServerCheck;
+  private boolean serverBatchInCommand;
+
+  // Counts the server's open transactions; null unless a server-side check is configured and
+  // the dialect supports one
   private PreparedStatement tranCountStatement;
 
+  /**
+   * A connection leased from one shard's pool, and the statements prepared on it.
+   */
+  private static final class ShardConnection {
+    final int shard;
+    final ConnectionPool pool;
+    final Connection leased;
+    final TransactionTracker tracker;
+    // Prepared statements by SQL, reused whenever the query comes back to this shard
+    final Map<String, PreparedStatement> statements = new HashMap<>();
+
+    ShardConnection(int shard, ConnectionPool pool, Connection leased,
+                    TransactionTracker tracker) {
+      this.shard = shard;
+      this.pool = pool;
+      this.leased = leased;
+      this.tracker = tracker;
+    }
+  }
+
   protected QueryAbstract() throws SQLException, IOException {
-    this.conn = DBConnUtils.openConnection();
-    tranCountStatement = conn.prepareStatement(TRANCOUNT_SQL);
+    DBConfig config = DBConfig.get();
+    this.txMaxAttempts = Math.max(1, config.getInt("flightapp.tx.max_attempts", 5));
+    this.txBaseBackoffMillis = config.getInt("flightapp.tx.base_backoff_millis", 5);
+    this.txMaxBackoffMillis = config.getInt("flightapp.tx.max_backoff_millis", 200);
+    this.dialect = config.dialect;
+    this.schema = SchemaManager.shared();
+    this.danglingCheck = DanglingCheck.valueOf(
+        config.getProperty("flightapp.tx.check", "client").trim().toUpperCase());
+    this.serverCheckEvery = Math.max(1, config.getInt("flightapp.tx.check_sample_every", 100));
+
+    this.router = ShardRouter.shared();
+    this.shards = new ShardConnection[router.shardCount()];
+    try {
+      switchShard(0);
+      this.readIsolation = isolationLevel(config.getProperty("flightapp.isolation.read", "auto"));
+    } catch (SQLException | RuntimeException e) {
+      releaseAfterFailedInit();
+      throw e;
+    }
+  }
+
+  /**
+   * Release the connections leased so far, for a constructor that is about to fail.
+   */
+  protected final void releaseAfterFailedInit() {
+    try {
+      closeConnection();
+    } catch (SQLException e) {
+      e.printStackTrace();
+    }
+  }
+
+  // The isolation level named by flightapp.isolation.read
+  private int isolationLevel(String name) throws SQLException {
+    switch (name.trim().toLowerCase()) {
+      case "auto":
+        if (autoReadIsolation == null) {
+          autoReadIsolation = dialect.readIsolation(conn);
+        }
+        return autoReadIsolation;
+      case "snapshot":
+        return Dialect.TRANSACTION_SNAPSHOT;
+      case "read_committed":
+        return Connection.TRANSACTION_READ_COMMITTED;
+      case "serializable":
+        return Connection.TRANSACTION_SERIALIZABLE;
+      default:
+        throw new IllegalArgumentException("Unknown isolation level: " + name);
+    }
+  }
+
+  /**
+   * Prepare a statement on the connection in use, or return the one already prepared there
+   * with the same SQL.  Table placeholders such as {@code {Users}} are resolved by
+   * {@link SchemaManager#sql(String)}.  The statement is closed automatically by
+   * {@link #closeConnection()}.
+   */
+  protected PreparedStatement prepare(String sql) throws SQLException {
+    PreparedStatement statement = current.statements.get(sql);
+    if (statement == null) {
+      statement = conn.prepareStatement(schema.sql(sql));
+      current.statements.put(sql, statement);
+    }
+    return statement;
+  }
+
+  /**
+   * Prepare every statement of the query with {@link #prepare(String)}.  Run again whenever the
+   * query moves to another shard.
+   */
+  protected abstract void prepareStatements() throws SQLException;
+
+  // Move this query to the shard that keeps the user's rows.  False, with the error reported,
+  // if that shard can't be reached.
+  private boolean routeTo(String username) {
+    if (username == null || shards.length == 1) {
+      return true;
+    }
+    try {
+      useShard(router.shardOf(username));
+      return true;
+    } catch (SQLException e) {
+      reportSqlError(e);
+      return false;
+    }
+  }
+
+  // Move to the shard, with the query's statements prepared there.
+  private void useShard(int shard) throws SQLException {
+    if (current.shard != shard) {
+      int previous = current.shard;
+      try {
+        switchShard(shard);
+        conn.setTransactionIsolation(commandIsolation);
+        prepareStatements();
+      } catch (SQLException | RuntimeException e) {
+        // Back to the previous shard, so that the connection in use and the statements agree.
+        // Its statements are prepared already, so this makes no round trips.
+        try {
+          switchShard(previous);
+          prepareStatements();
+        } catch (SQLException b) {}
+        throw e;
+      }
+    }
+  }
+
+  // Make the shard's connection the one in use, leasing it on first use.
+  private void switchShard(int shard) throws SQLException {
+    ShardConnection next = shards[shard];
+    if (next == null) {
+      ConnectionPool pool;
+      try {
+        pool = router.pool(shard);
+      } catch (IOException e) {
+        throw new SQLException("Cannot read database configuration", e);
+      }
+      Connection leased = pool.lease();
+      try {
+        next = new ShardConnection(shard, pool, leased, TransactionTracker.wrap(leased));
+      } catch (SQLException e) {
+        pool.release(leased);
+        throw e;
+      }
+      shards[shard] = next;
+    }
+    current = next;
+    conn = next.tracker.connection();
+    if (danglingCheck != DanglingCheck.OFF && dialect.tranCountSql() != null) {
+      tranCountStatement = prepare(dialect.tranCountSql());
+    }
+  }
+
+  /**
+   * Switch this query to serve the given user session.  Used by the server mode, where one
+   * query (and its connection) serves commands from many sessions in turn.
+   */
+  public void setSession(Session session) {
+    this.session = session;
+  }
+
+  public Session getSession() {
+    return session;
   }
 
   /**
@@ -26,10 +258,31 @@ public abstract class QueryAbstract {
   }
 
   /**
-   * Closes the application-to-database connection
+   * Closes this query's statements and returns its connections to their pools
    */
   public void closeConnection() throws SQLException {
-    conn.close();
+    if (conn == null) {
+      return;
+    }
+    for (int shard = 0; shard < shards.length; shard++) {
+      ShardConnection sc = shards[shard];
+      if (sc == null) {
+        continue;
+      }
+      try {
+        for (PreparedStatement statement : sc.statements.values()) {
+          try {
+            statement.close();
+          } catch (SQLException e) {}
+        }
+        sc.statements.clear();
+      } finally {
+        sc.pool.release(sc.leased);
+        shards[shard] = null;
+      }
+    }
+    current = null;
+    conn = null;
   }
 
   /**
@@ -39,7 +292,11 @@ public abstract class QueryAbstract {
    */
   public final void clearTablesWrap() {
     try {
-      clearTables();
+      // Every shard's tables, ending back on the primary
+      for (int shard = shards.length - 1; shard >= 0; shard--) {
+        useShard(shard);
+        clearTables();
+      }
     } catch (SQLException e) {
       throw new RuntimeException(e);
     } finally {
@@ -59,10 +316,13 @@ public abstract class QueryAbstract {
    *         other errors, return "Login failed\n". Otherwise, return "Logged in as [username]\n".
    */
   public final String login(String username, String password) {
+    long start = beginCommand(LOGIN_METRICS, WRITE_ISOLATION);
+    String response = null;
     try {
-      return transaction_login(username, password);
+      response = routeTo(username) ? transaction_login(username, password) : "Login failed\n";
+      return response;
     } finally {
-      checkDanglingTransaction();
+      endCommand(start, response, r -> r.startsWith("Logged in as "));
     }
   }
 
@@ -79,10 +339,14 @@ public abstract class QueryAbstract {
    * @return either "Created user {@code username}\n" or "Failed to create user\n" if failed.
    */
   public final String createCustomer(String username, String password, int initAmount) {
+    long start = beginCommand(CREATE_METRICS, WRITE_ISOLATION);
+    String response = null;
     try {
-      return transaction_createCustomer(username, password, initAmount);
+      response = routeTo(username) ? transaction_createCustomer(username, password, initAmount)
+          : "Failed to create user\n";
+      return response;
     } finally {
-      checkDanglingTransaction();
+      endCommand(start, response, r -> r.startsWith("Created user "));
     }
   }
 
@@ -121,11 +385,14 @@ public abstract class QueryAbstract {
    */
   public final String search(String originCity, String destinationCity, boolean directFlight,
                              int dayOfMonth, int numberOfItineraries) {
+    long start = beginCommand(SEARCH_METRICS, readIsolation);
+    String response = null;
     try {
-      return transaction_search(originCity, destinationCity, directFlight,
-                                dayOfMonth, numberOfItineraries);
+      response = transaction_search(originCity, destinationCity, directFlight,
+                                    dayOfMonth, numberOfItineraries);
+      return response;
     } finally {
-      checkDanglingTransaction();
+      endCommand(start, response, r -> !r.startsWith("Failed"));
     }
   }
 
@@ -154,10 +421,14 @@ public abstract class QueryAbstract {
    * @see #search()
    */
   public final String book(int itineraryId) {
+    long start = beginCommand(BOOK_METRICS, WRITE_ISOLATION);
+    String response = null;
     try {
-      return transaction_book(itineraryId);
+      response = routeTo(session.currentUser) ? transaction_book(itineraryId)
+          : "Booking failed\n";
+      return response;
     } finally {
-      checkDanglingTransaction();
+      endCommand(start, response, r -> r.startsWith("Booked flight(s)"));
     }
   }
 
@@ -182,10 +453,14 @@ public abstract class QueryAbstract {
    * @see #book()
    */
   public final String pay(int reservationId) {
+    long start = beginCommand(PAY_METRICS, WRITE_ISOLATION);
+    String response = null;
     try {
-      return transaction_pay(reservationId);
+      response = routeTo(session.currentUser) ? transaction_pay(reservationId)
+          : "Failed to pay for reservation " + reservationId + "\n";
+      return response;
     } finally {
-      checkDanglingTransaction();
+      endCommand(start, response, r -> r.startsWith("Paid reservation: "));
     }
   }
 
@@ -211,24 +486,205 @@ public abstract class QueryAbstract {
    * @see Query.Flight#toString()
    */
   public final String reservations() {
+    long start = beginCommand(RESERVATIONS_METRICS, readIsolation);
+    String response = null;
     try {
-      return transaction_reservations();
+      response = routeTo(session.currentUser) ? transaction_reservations()
+          : "Failed to retrieve reservations\n";
+      return response;
     } finally {
-      checkDanglingTransaction();
+      endCommand(start, response, r -> !r.startsWith("Cannot") && !r.startsWith("Failed"));
     }
   }
 
   public abstract String transaction_reservations();
 
+  // Start timing a command, and switch to its isolation level (sent with its first statement).
+  private long beginCommand(CommandMetrics metrics, int isolation) {
+    long start = System.nanoTime();
+    currentCommand = metrics;
+    commandIsolation = isolation;
+    sqlErrorInCommand = false;
+    try {
+      conn.setTransactionIsolation(isolation);
+    } catch (SQLException e) {
+      reportSqlError(e);
+    }
+    return start;
+  }
+
+  // Check for a dangling transaction, then record the command's latency and outcome.  A null
+  // response means the command threw, which counts as an error.
+  private void endCommand(long start, String response, Predicate<String> succeeded) {
+    try {
+      checkDanglingTransaction();
+    } finally {
+      currentCommand.record(System.nanoTime() - start,
+                            response != null && succeeded.test(response),
+                            sqlErrorInCommand || response == null);
+      currentCommand = null;
+    }
+  }
+
+  /**
+   * Report a database error that fails the current command: logged, and counted as a SQL
+   * error rather than a business failure.
+   */
+  protected void reportSqlError(SQLException e) {
+    e.printStackTrace();
+    sqlErrorInCommand = true;
+  }
+
+  /**
+   * A unit of transactional work, run by {@link #runTransaction(String, TransactionBody)}.
+   *
+   * The body runs with auto-commit off and is responsible for committing, or for rolling back
+   * before returning a business failure.  Throwing an SQLException rolls the transaction back.
+   */
+  @FunctionalInterface
+  protected interface TransactionBody<T> {
+    T run() throws SQLException;
+  }
+
+  /**
+   * Run body as a transaction, retrying it with exponential backoff and jitter when it fails
+   * with a retryable error, up to the configured number of attempts.
+   *
+   * @param operation name under which retries and aborts are counted
+   *
+   * @throws SQLException the last error, if the body failed with a non-retryable error or ran
+   *                      out of attempts
+   */
+  protected final <T> T runTransaction(String operation, TransactionBody<T> body)
+      throws SQLException {
+    return runWithRetries(operation, body, true);
+  }
+
+  /**
+   * Run body with the same retry policy as {@link #runTransaction(String, TransactionBody)},
+   * but with auto-commit left on.  For work that is atomic on its own, such as a single
+   * statement or a server-side batch that manages its own transaction, where an explicit
+   * commit would cost an extra round trip.
+   */
+  protected final <T> T runStatement(String operation, TransactionBody<T> body)
+      throws SQLException {
+    return runWithRetries(operation, body, false);
+  }
+
+  private <T> T runWithRetries(String operation, TransactionBody<T> body,
+                               boolean transactional) throws SQLException {
+    TransactionStats stats = statsFor(operation);
+    for (int attempt = 1; ; attempt++) {
+      stats.attempts.increment();
+      try {
+        if (transactional) {
+          conn.setAutoCommit(false);
+        }
+        T result = body.run();
+        stats.completed.increment();
+        return result;
+      } catch (SQLException e) {
+        if (transactional) {
+          try {
+            conn.rollback();
+          } catch (SQLException b) {}
+        }
+
+        if (!isRetryable(e) || attempt >= txMaxAttempts) {
+          stats.aborts.increment();
+          throw e;
+        }
+        stats.retries.increment();
+        if (currentCommand != null) {
+          currentCommand.recordRetry();
+        }
+        backoff(attempt);
+      } finally {
+        if (transactional) {
+          try {
+            conn.setAutoCommit(true);
+          } catch (SQLException e) {}
+        }
+      }
+    }
+  }
+
+  /**
+   * Whether a failed transaction may succeed if simply run again.
+   */
+  protected boolean isRetryable(SQLException e) {
+    return dialect.isRetryable(e);
+  }
+
+  // Sleep for a random time up to base * 2^(attempt - 1), capped ("full jitter")
+  private void backoff(int attempt) {
+    long ceiling = Math.min(txMaxBackoffMillis, txBaseBackoffMillis << Math.min(attempt - 1, 20));
+    if (ceiling <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static TransactionStats statsFor(String operation) {
+    return TRANSACTION_STATS.computeIfAbsent(operation, name -> new TransactionStats());
+  }
+
+  /**
+   * Live per-operation transaction counters, by operation name.
+   */
+  static Map<String, TransactionStats> transactionStatsByOperation() {
+    return Collections.unmodifiableMap(TRANSACTION_STATS);
+  }
+
+  /**
+   * Per-operation transaction counters, one line per operation.
+   */
+  public static String transactionStats() {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, TransactionStats> entry : TRANSACTION_STATS.entrySet()) {
+      sb.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Counters for one kind of transaction.
+   */
+  static class TransactionStats {
+    final LongAdder attempts = new LongAdder();
+    final LongAdder completed = new LongAdder();
+    final LongAdder retries = new LongAdder();
+    final LongAdder aborts = new LongAdder();
+
+    @Override
+    public String toString() {
+      return "attempts: " + attempts.sum() + " completed: " + completed.sum() + " retries: "
+          + retries.sum() + " aborts: " + aborts.sum();
+    }
+  }
+
   /**
    * Throw IllegalStateException if transaction not completely complete, rollback.
    *
    */
   protected void checkDanglingTransaction() throws IllegalStateException {
     try {
-      try (ResultSet rs = tranCountStatement.executeQuery()) {
-        rs.next();
-        int count = rs.getInt("tran_count");
+      try {
+        int count = 0;
+        if (danglingCheck != DanglingCheck.OFF && current.tracker.inTransaction()) {
+          count = 1;
+        }
+        boolean askServer = serverCheckDue();
+        if (count == 0 && askServer) {
+          try (ResultSet rs = tranCountStatement.executeQuery()) {
+            rs.next();
+            count = rs.getInt("tran_count");
+          }
+        }
         if (count > 0) {
           throw new IllegalStateException(
               "\nTransaction not fully commited/rolledback. Number of transactions currently"
@@ -238,10 +694,42 @@ public abstract class QueryAbstract {
               + " the error string.\n");
         }
       } finally {
+        // Free unless auto-commit was left off
         conn.setAutoCommit(true);
       }
     } catch (SQLException e) {
       throw new IllegalStateException("Database error", e);
     }
   }
+
+  /**
+   * Note that the command is running a server-side batch that opens its own transaction, which
+   * client-side tracking can't see: one left open (say, by a timeout or an attention before its
+   * COMMIT) is then looked for on the server.
+   */
+  protected void serverBatchRan() {
+    serverBatchInCommand = true;
+  }
+
+  // Whether this command's dangling-transaction check should also ask the server.
+  private boolean serverCheckDue() {
+    boolean serverBatch = serverBatchInCommand;
+    serverBatchInCommand = false;
+    if (tranCountStatement == null) {
+      return false;
+    }
+    if (serverBatch) {
+      return true;
+    }
+    if (danglingCheck == DanglingCheck.CLIENT) {
+      return false;
+    }
+    if (danglingCheck == DanglingCheck.SAMPLE) {
+      if (++commandsSinceServerCheck < serverCheckEvery) {
+        return false;
+      }
+      commandsSinceServerCheck = 0;
+    }
+    return true;
+  }
 }
@@ -0,0 +1,144 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Hands out reservation IDs from blocks reserved in a durable sequence row (hi/lo style).
+ *
+ * The next unallocated ID lives in the ReservationIds table (next_rid INT NOT NULL, see
+ * {@link SchemaManager}), in a single row.  Each trip to the database reserves
+ * {@code blockSize} IDs, which are then handed out in strictly increasing order by this process
+ * without further database work.  Reservation IDs start at 1 and go up by 1 per reservation:
+ * callers allocate a booking's ID once, when the booking is known to succeed, and reuse it if the
+ * transaction inserting it is retried.
+ *
+ * Blocks are reserved on a dedicated connection of the allocator's own, committed
+ * independently of any booking, so that a rolled-back booking never un-reserves a block that
+ * this process is still handing IDs out from.  The connection is deliberately not taken from the
+ * pool: every pooled connection may be held by a session waiting on this allocator.
+ */
+public final class ReservationIdAllocator {
+  private static final String RESEED_SQL =
+      "UPDATE {ReservationIds} SET next_rid = "
+      + "(SELECT COALESCE(MAX(rid), 0) + 1 FROM {Reservations})";
+  private static final String ADVANCE_SQL =
+      "UPDATE {ReservationIds} SET next_rid = next_rid + ?";
+  private static final String READ_SQL = "SELECT next_rid FROM {ReservationIds}";
+  private static final String CREATE_SQL =
+      "INSERT INTO {ReservationIds} (next_rid) "
+      + "SELECT COALESCE(MAX(rid), 0) + 1 + ? FROM {Reservations}";
+
+  private static ReservationIdAllocator shared;
+
+  private final int blockSize;
+  private final SchemaManager schema;
+
+  // Dedicated connection, opened on first use
+  private Connection conn;
+
+  // Whether the next block reservation should first resynchronize the sequence with the
+  // highest reservation ID actually in use (drops IDs left over from a previous process)
+  private boolean reseed;
+
+  // The current block is [next, limit)
+  private int next;
+  private int limit;
+
+  public ReservationIdAllocator(int blockSize, boolean reseed, SchemaManager schema) {
+    this.blockSize = Math.max(1, blockSize);
+    this.schema = schema;
+    this.reseed = reseed;
+  }
+
+  /**
+   * Returns the process-wide allocator, configured from dbconn.properties on first use.
+   */
+  public static synchronized ReservationIdAllocator shared() throws IOException {
+    if (shared == null) {
+      DBConfig config = DBConfig.get();
+      // Sharded, the highest ID in use is not all in the primary's reservations table
+      boolean sharded = config.getInt("flightapp.shard_count", 1) > 1;
+      shared = new ReservationIdAllocator(config.getInt("flightapp.rid_block_size", 64),
+                                          config.getBoolean("flightapp.rid_reseed", !sharded),
+                                          SchemaManager.shared());
+    }
+    return shared;
+  }
+
+  /**
+   * Returns the next reservation ID.  Callers allocate one per booking and reuse it on retries.
+   */
+  public synchronized int nextId() throws SQLException {
+    if (next >= limit) {
+      reserveBlock();
+    }
+    return next++;
+  }
+
+  /**
+   * Forget the current block.  Used after the reservations table has
+   * been cleared; the next ID is resynchronized with the table.
+   */
+  public synchronized void reset() {
+    next = 0;
+    limit = 0;
+    reseed = true;
+  }
+
+  private void reserveBlock() throws SQLException {
+    if (conn == null) {
+      try {
+        conn = DBConnUtils.openConnection();
+      } catch (IOException e) {
+        throw new SQLException("Cannot read database configuration", e);
+      }
+    }
+
+    try {
+      conn.setAutoCommit(false);
+      if (reseed) {
+        try (PreparedStatement stmt = conn.prepareStatement(schema.sql(RESEED_SQL))) {
+          stmt.executeUpdate();
+        }
+      }
+
+      boolean exists;
+      try (PreparedStatement stmt = conn.prepareStatement(schema.sql(ADVANCE_SQL))) {
+        stmt.setInt(1, blockSize);
+        exists = stmt.executeUpdate() == 1;
+      }
+      if (!exists) {
+        // First use: start the sequence after the highest ID already in use
+        try (PreparedStatement stmt = conn.prepareStatement(schema.sql(CREATE_SQL))) {
+          stmt.setInt(1, blockSize);
+          stmt.executeUpdate();
+        }
+      }
+
+      int end;
+      try (PreparedStatement stmt = conn.prepareStatement(schema.sql(READ_SQL));
+           ResultSet rs = stmt.executeQuery()) {
+        rs.next();
+        end = rs.getInt("next_rid");
+      }
+      conn.commit();
+      conn.setAutoCommit(true);
+
+      reseed = false;
+      next = end - blockSize;
+      limit = end;
+    } catch (SQLException e) {
+      // Start over on a fresh connection next time
+      try {
+        conn.rollback();
+        conn.close();
+      } catch (SQLException b) {}
+      conn = null;
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,283 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Creates and migrates the application's own tables and the indexes its queries rely on.
+ *
+ * Table names carry the configured suffix ({@code flightapp.tablename_suffix}, see
+ * {@link DBConnUtils#getTableSuffix()}); without one, the suffix is {@value #DEFAULT_SUFFIX}.
+ * SQL in the rest of the application names the tables as {@code {Users}},
+ * {@code {Reservations}}, {@code {ReservationIds}} and {@code {FlightSeats}}, which
+ * {@link #sql(String)} resolves.
+ *
+ * {@link #createOrMigrate(Connection, boolean)} creates missing tables, adds columns missing
+ * from existing ones, and creates missing indexes: covering indexes for the reservation lookups
+ * (by user, and by either flight for seat counts) and one on FLIGHTS for the search predicates.
+ * {@link #verifyPlans(Connection)} then asks the engine for the plans of those lookups and warns
+ * about any that don't use their index.  Both run once per process, on every shard, from
+ * {@link ShardRouter#shared()}; {@code flightapp.schema.bootstrap} and
+ * {@code flightapp.schema.verify_plans} turn them off.
+ */
+public final class SchemaManager {
+  static final String DEFAULT_SUFFIX = "lizazak";
+
+  private static final String FLIGHTS_INDEX = "IX_FLIGHTS_route";
+
+  private static SchemaManager shared;
+
+  private final Dialect dialect;
+  private final String users;
+  private final String reservations;
+  private final String reservationIds;
+  private final String flightSeats;
+
+  /**
+   * A table: its columns (the first ones making up the primary key, if any) and constraints.
+   */
+  private static final class Table {
+    final String name;
+    final String[] columns;
+    final String[] constraints;
+
+    Table(String name, String[] columns, String... constraints) {
+      this.name = name;
+      this.columns = columns;
+      this.constraints = constraints;
+    }
+  }
+
+  /**
+   * An index, and a query whose plan should use it.
+   */
+  private static final class Index {
+    final String name;
+    final String table;
+    final String keys;
+    final String include;
+    final String probe;
+
+    Index(String name, String table, String keys, String include, String probe) {
+      this.name = name;
+      this.table = table;
+      this.keys = keys;
+      this.include = include;
+      this.probe = probe;
+    }
+  }
+
+  public SchemaManager(Dialect dialect, String suffix) {
+    this.dialect = dialect;
+    this.users = "Users_" + suffix;
+    this.reservations = "Reservations_" + suffix;
+    this.reservationIds = "ReservationIds_" + suffix;
+    this.flightSeats = "FlightSeats_" + suffix;
+  }
+
+  /**
+   * Returns the process-wide schema, configured from dbconn.properties on first use.
+   */
+  public static synchronized SchemaManager shared() throws IOException {
+    if (shared == null) {
+      DBConfig config = DBConfig.get();
+      shared = new SchemaManager(config.dialect,
+                                 config.tableSuffix == null ? DEFAULT_SUFFIX : config.tableSuffix);
+    }
+    return shared;
+  }
+
+  /**
+   * The SQL with its table placeholders replaced by the configured tables.
+   */
+  public String sql(String template) {
+    if (template.indexOf('{') < 0) {
+      return template;
+    }
+    return template.replace("{Users}", users)
+        .replace("{Reservations}", reservations)
+        .replace("{ReservationIds}", reservationIds)
+        .replace("{FlightSeats}", flightSeats);
+  }
+
+  private Table[] tables() {
+    return new Table[] {
+      new Table(users, new String[] {"username VARCHAR(64) NOT NULL",
+                                     "hashedPassword VARBINARY(256) NOT NULL",
+                                     "balance INT DEFAULT 0 NOT NULL"},
+                "PRIMARY KEY (username)"),
+      new Table(reservations, new String[] {"rid INT NOT NULL",
+                                            "username VARCHAR(64) NOT NULL",
+                                            "paid INT DEFAULT 0 NOT NULL",
+                                            "flight1_id INT NOT NULL",
+                                            "flight2_id INT NULL"},
+                "PRIMARY KEY (rid)",
+                "FOREIGN KEY (username) REFERENCES " + users + " (username)"),
+      new Table(reservationIds, new String[] {"next_rid INT NOT NULL"}),
+      new Table(flightSeats, new String[] {"fid INT NOT NULL",
+                                           "booked INT DEFAULT 0 NOT NULL"},
+                "PRIMARY KEY (fid)")
+    };
+  }
+
+  private Index[] indexes() {
+    return new Index[] {
+      // A user's reservations, in rid order (reservations, book's same-day check)
+      new Index("IX_" + reservations + "_user", reservations, "username, rid",
+                "paid, flight1_id, flight2_id",
+                "SELECT rid, paid, flight1_id, flight2_id FROM " + reservations
+                + " WHERE username = 'x' ORDER BY rid"),
+      // Seats taken on a flight, as either leg
+      new Index("IX_" + reservations + "_flight1", reservations, "flight1_id", "rid",
+                "SELECT COUNT(*) FROM " + reservations + " WHERE flight1_id = 1"),
+      new Index("IX_" + reservations + "_flight2", reservations, "flight2_id", "rid",
+                "SELECT COUNT(*) FROM " + reservations + " WHERE flight2_id = 1"),
+      // Search, both direct and as either leg of an indirect itinerary
+      new Index(FLIGHTS_INDEX, "FLIGHTS", "origin_city, dest_city, day_of_month, canceled",
+                "actual_time, fid, carrier_id, flight_num, capacity, price",
+                "SELECT fid, actual_time FROM FLIGHTS WHERE origin_city = 'x' "
+                + "AND dest_city = 'y' AND day_of_month = 1 AND canceled = 0")
+    };
+  }
+
+  /**
+   * Create the missing tables, columns and indexes.
+   *
+   * @param replica whether this is a shard other than the primary, where FLIGHTS is a replica
+   *                that is created if missing (see {@link #createFlightsLike})
+   */
+  public void createOrMigrate(Connection conn, boolean replica) throws SQLException {
+    DatabaseMetaData meta = conn.getMetaData();
+    try (Statement stmt = conn.createStatement()) {
+      for (Table table : tables()) {
+        Set<String> existing = columnsOf(meta, table.name);
+        if (existing.isEmpty()) {
+          List<String> parts = new ArrayList<>();
+          for (String column : table.columns) {
+            parts.add(column);
+          }
+          for (String constraint : table.constraints) {
+            parts.add(constraint);
+          }
+          stmt.executeUpdate("CREATE TABLE " + table.name + " (" + String.join(", ", parts)
+                             + ")");
+          continue;
+        }
+        for (String column : table.columns) {
+          String name = column.substring(0, column.indexOf(' '));
+          if (!existing.contains(name.toLowerCase(Locale.ROOT))) {
+            stmt.executeUpdate("ALTER TABLE " + table.name + " ADD " + column);
+          }
+        }
+      }
+
+      for (Index index : indexes()) {
+        if (replica && index.table.equals("FLIGHTS") && columnsOf(meta, "FLIGHTS").isEmpty()) {
+          // Created, with its index, when it is replicated
+          continue;
+        }
+        if (!indexExists(meta, index.table, index.name)) {
+          try {
+            stmt.executeUpdate(dialect.createIndexSql(index.name, index.table, index.keys,
+                                                      index.include));
+          } catch (SQLException e) {
+            // e.g. FLIGHTS not loaded yet; the plan check reports it
+            System.err.println("Cannot create index " + index.name + ": " + e.getMessage());
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Create FLIGHTS in a replica with the primary's columns, and its search index.
+   */
+  public void createFlightsLike(Connection primary, Connection replica) throws SQLException {
+    if (!columnsOf(replica.getMetaData(), "FLIGHTS").isEmpty()) {
+      return;
+    }
+    try (Statement select = primary.createStatement()) {
+      select.setMaxRows(1);
+      try (ResultSet rs = select.executeQuery("SELECT * FROM FLIGHTS")) {
+        ResultSetMetaData meta = rs.getMetaData();
+        List<String> columns = new ArrayList<>();
+        for (int i = 1; i <= meta.getColumnCount(); i++) {
+          String type = meta.getColumnTypeName(i);
+          if (type.toUpperCase(Locale.ROOT).contains("CHAR")) {
+            type += "(" + meta.getPrecision(i) + ")";
+          }
+          columns.add(meta.getColumnName(i) + " " + type
+                      + (meta.getColumnName(i).equalsIgnoreCase("fid") ? " PRIMARY KEY" : ""));
+        }
+        try (Statement stmt = replica.createStatement()) {
+          stmt.executeUpdate("CREATE TABLE FLIGHTS (" + String.join(", ", columns) + ")");
+        }
+      }
+    }
+    createOrMigrate(replica, false);
+  }
+
+  /**
+   * Check that the engine's plans for the indexed lookups use their indexes.
+   *
+   * @return a warning for each lookup that doesn't
+   */
+  public List<String> verifyPlans(Connection conn) {
+    List<String> warnings = new ArrayList<>();
+    for (Index index : indexes()) {
+      try {
+        String plan = dialect.explain(conn, index.probe);
+        if (plan == null
+            || !plan.toLowerCase(Locale.ROOT).contains(index.name.toLowerCase(Locale.ROOT))) {
+          warnings.add("Plan does not use " + index.name + ": " + index.probe);
+        }
+      } catch (SQLException e) {
+        warnings.add("Cannot explain " + index.probe + ": " + e.getMessage());
+      }
+    }
+    return warnings;
+  }
+
+  // Lowercased column names of the table, empty if there is no such table.  Identifiers may be
+  // stored as written or folded to either case, depending on the engine.
+  private static Set<String> columnsOf(DatabaseMetaData meta, String table) throws SQLException {
+    Set<String> columns = new HashSet<>();
+    for (String name : new String[] {table, table.toUpperCase(Locale.ROOT),
+                                     table.toLowerCase(Locale.ROOT)}) {
+      try (ResultSet rs = meta.getColumns(null, null, name, null)) {
+        while (rs.next()) {
+          columns.add(rs.getString("COLUMN_NAME").toLowerCase(Locale.ROOT));
+        }
+      }
+      if (!columns.isEmpty()) {
+        break;
+      }
+    }
+    return columns;
+  }
+
+  private static boolean indexExists(DatabaseMetaData meta, String table, String index)
+      throws SQLException {
+    for (String name : new String[] {table, table.toUpperCase(Locale.ROOT),
+                                     table.toLowerCase(Locale.ROOT)}) {
+      try (ResultSet rs = meta.getIndexInfo(null, null, name, false, true)) {
+        while (rs.next()) {
+          if (index.equalsIgnoreCase(rs.getString("INDEX_NAME"))) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,244 @@
+package flightapp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, process-wide cache of search results keyed by (origin, dest, direct, day).
+ *
+ * An entry computed for n itineraries can serve any later search for up to n itineraries with
+ * the same key: the direct flights are a prefix of the cached ones, and so are the two-hop
+ * itineraries that fill the remaining slots.  Entries expire after a TTL, the least recently
+ * used entry is evicted once the cache is full, and everything is dropped when flight data
+ * changes (see {@link FlightIndex#invalidate()}).
+ */
+public final class SearchCache {
+  private static SearchCache shared;
+
+  private final int maxEntries;
+  private final long ttlNanos;
+  private final LinkedHashMap<Key, Entry> entries;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder expirations = new LongAdder();
+  private final LongAdder invalidations = new LongAdder();
+
+  public SearchCache(int maxEntries, long ttlMillis) {
+    this.maxEntries = maxEntries;
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+        if (size() > SearchCache.this.maxEntries) {
+          evictions.increment();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Returns the shared cache, configured from dbconn.properties on first use.
+   */
+  public static synchronized SearchCache shared() throws IOException {
+    if (shared == null) {
+      DBConfig config = DBConfig.get();
+      shared = new SearchCache(config.getInt("flightapp.search_cache.max_entries", 10000),
+                               config.getInt("flightapp.search_cache.ttl_seconds", 300) * 1000L);
+    }
+    return shared;
+  }
+
+  /**
+   * Drops every entry of the shared cache, if it has been created.
+   */
+  public static synchronized void invalidateShared() {
+    if (shared != null) {
+      shared.invalidateAll();
+    }
+  }
+
+  public boolean isEnabled() {
+    return maxEntries > 0;
+  }
+
+  /**
+   * Look up a cached result able to answer a search for numberOfItineraries itineraries.
+   *
+   * @return the cached entry, or null on a miss
+   */
+  public Entry get(String originCity, String destCity, boolean directFlight, int dayOfMonth,
+                   int numberOfItineraries) {
+    if (!isEnabled()) {
+      return null;
+    }
+    Key key = new Key(originCity, destCity, directFlight, dayOfMonth);
+    synchronized (entries) {
+      Entry entry = entries.get(key);
+      if (entry != null && System.nanoTime() - entry.createdNanos > ttlNanos) {
+        entries.remove(key);
+        expirations.increment();
+        entry = null;
+      }
+      if (entry == null || entry.depth < numberOfItineraries) {
+        misses.increment();
+        return null;
+      }
+      hits.increment();
+      return entry;
+    }
+  }
+
+  /**
+   * Cache the sorted direct and two-hop itineraries found by a search for depth itineraries.
+   */
+  public void put(String originCity, String destCity, boolean directFlight, int dayOfMonth,
+                  int depth, List<Query.Itinerary> direct, List<Query.Itinerary> indirect) {
+    if (!isEnabled()) {
+      return;
+    }
+    Entry entry = new Entry(depth, direct, indirect);
+    synchronized (entries) {
+      entries.put(new Key(originCity, destCity, directFlight, dayOfMonth), entry);
+    }
+  }
+
+  public void invalidateAll() {
+    synchronized (entries) {
+      entries.clear();
+    }
+    invalidations.increment();
+  }
+
+  /**
+   * Remove expired entries.  Expired entries are otherwise only removed when looked up.
+   */
+  public void purgeExpired() {
+    long now = System.nanoTime();
+    synchronized (entries) {
+      Iterator<Entry> it = entries.values().iterator();
+      while (it.hasNext()) {
+        if (now - it.next().createdNanos > ttlNanos) {
+          it.remove();
+          expirations.increment();
+        }
+      }
+    }
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "entries: " + size() + "/" + maxEntries + " hits: " + hits.sum() + " misses: "
+        + misses.sum() + " evictions: " + evictions.sum() + " expirations: "
+        + expirations.sum() + " invalidations: " + invalidations.sum();
+  }
+
+  /**
+   * An immutable cached search result.  Flights are shared between sessions and must not be
+   * modified; itineraries are rebuilt for every search since they carry a per-search number.
+   */
+  public static final class Entry {
+    final int depth;
+    private final Query.Flight[] direct;
+    private final Query.Flight[] indirectFirst;
+    private final Query.Flight[] indirectSecond;
+    private final long createdNanos = System.nanoTime();
+
+    private Entry(int depth, List<Query.Itinerary> direct, List<Query.Itinerary> indirect) {
+      this.depth = depth;
+      this.direct = new Query.Flight[direct.size()];
+      for (int i = 0; i < direct.size(); i++) {
+        this.direct[i] = direct.get(i).flight1;
+      }
+      this.indirectFirst = new Query.Flight[indirect.size()];
+      this.indirectSecond = new Query.Flight[indirect.size()];
+      for (int i = 0; i < indirect.size(); i++) {
+        this.indirectFirst[i] = indirect.get(i).flight1;
+        this.indirectSecond[i] = indirect.get(i).flight2;
+      }
+    }
+
+    /**
+     * The best min(n, cached) direct itineraries.
+     */
+    List<Query.Itinerary> directItineraries(int n) {
+      int count = Math.max(0, Math.min(n, direct.length));
+      List<Query.Itinerary> itineraries = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        itineraries.add(new Query.Itinerary(direct[i], null));
+      }
+      return itineraries;
+    }
+
+    /**
+     * The best min(n, cached) two-hop itineraries.
+     */
+    List<Query.Itinerary> indirectItineraries(int n) {
+      int count = Math.max(0, Math.min(n, indirectFirst.length));
+      List<Query.Itinerary> itineraries = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        itineraries.add(new Query.Itinerary(indirectFirst[i], indirectSecond[i]));
+      }
+      return itineraries;
+    }
+  }
+
+  private static final class Key {
+    private final String originCity;
+    private final String destCity;
+    private final boolean directFlight;
+    private final int dayOfMonth;
+
+    Key(String originCity, String destCity, boolean directFlight, int dayOfMonth) {
+      this.originCity = originCity;
+      this.destCity = destCity;
+      this.directFlight = directFlight;
+      this.dayOfMonth = dayOfMonth;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return dayOfMonth == other.dayOfMonth && directFlight == other.directFlight
+          && originCity.equals(other.originCity) && destCity.equals(other.destCity);
+    }
+
+    @Override
+    public int hashCode() {
+      int h = originCity.hashCode();
+      h = 31 * h + destCity.hashCode();
+      h = 31 * h + dayOfMonth;
+      return 31 * h + (directFlight ? 1 : 0);
+    }
+  }
+}
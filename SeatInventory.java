@@ -0,0 +1,136 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Remaining seats per flight, held in process and updated without locks.
+ *
+ * Used by the inventory booking mode ({@code flightapp.booking_mode=inventory}), in which this
+ * process decides every booking's capacity by itself instead of inside a serializable database
+ * transaction, and {@link BookingJournal} makes the decisions durable.  That is only correct
+ * while this process is the only one booking seats.
+ *
+ * Counters live in one primitive array indexed by fid.  A flight's counter is loaded from the
+ * database on its first booking; from then on seats are taken and given back with
+ * compare-and-set, so bookings on different flights never contend and bookings on the same
+ * flight only retry, never block.
+ */
+public final class SeatInventory {
+  // Marks a flight whose remaining seats have not been loaded yet
+  private static final int UNKNOWN = Integer.MIN_VALUE;
+
+  private static SeatInventory shared;
+
+  private final AtomicIntegerArray remaining;
+
+  /**
+   * @param maxFid one more than the highest fid that can be booked
+   */
+  public SeatInventory(int maxFid) {
+    this.remaining = new AtomicIntegerArray(Math.max(1, maxFid));
+    reset();
+  }
+
+  /**
+   * Returns the process-wide inventory, configured from dbconn.properties on first use.
+   */
+  public static synchronized SeatInventory shared() throws IOException {
+    if (shared == null) {
+      shared = new SeatInventory(DBConfig.get().getInt("flightapp.inventory.max_fid", 1 << 21));
+    }
+    return shared;
+  }
+
+  /**
+   * Counts the seats already booked on a flight, when its counter is first loaded.
+   */
+  @FunctionalInterface
+  public interface BookedSeats {
+    int count(int fid) throws SQLException;
+  }
+
+  /**
+   * Take a seat on each flight of an itinerary, or on neither.
+   *
+   * @param fid2 the second flight, or 0 for a direct itinerary
+   *
+   * @return whether both flights had a free seat
+   */
+  public boolean reserve(int fid1, int capacity1, int fid2, int capacity2, BookedSeats booked)
+      throws SQLException {
+    if (!take(fid1, capacity1, booked)) {
+      return false;
+    }
+    try {
+      if (fid2 == 0 || take(fid2, capacity2, booked)) {
+        return true;
+      }
+    } catch (SQLException e) {
+      give(fid1);
+      throw e;
+    }
+    give(fid1);
+    return false;
+  }
+
+  /**
+   * Give back the seats taken by {@link #reserve}, for a booking that was not made.
+   */
+  public void release(int fid1, int fid2) {
+    give(fid1);
+    if (fid2 != 0) {
+      give(fid2);
+    }
+  }
+
+  /**
+   * Forget every counter; each is loaded again on its flight's next booking.  Used after the
+   * reservations table has been cleared.
+   */
+  public void reset() {
+    for (int i = 0; i < remaining.length(); i++) {
+      remaining.set(i, UNKNOWN);
+    }
+  }
+
+  private boolean take(int fid, int capacity, BookedSeats booked) throws SQLException {
+    if (fid <= 0 || fid >= remaining.length()) {
+      throw new SQLException("Flight " + fid + " is beyond flightapp.inventory.max_fid");
+    }
+    int seats = remaining.get(fid);
+    if (seats == UNKNOWN) {
+      seats = load(fid, capacity, booked);
+    }
+    while (seats > 0) {
+      int witness = remaining.compareAndExchange(fid, seats, seats - 1);
+      if (witness == seats) {
+        return true;
+      }
+      seats = witness;
+    }
+    return false;
+  }
+
+  // A counter reset since the seat was taken stays unloaded: it is reloaded from the database.
+  private void give(int fid) {
+    int seats = remaining.get(fid);
+    while (seats != UNKNOWN) {
+      int witness = remaining.compareAndExchange(fid, seats, seats + 1);
+      if (witness == seats) {
+        return;
+      }
+      seats = witness;
+    }
+  }
+
+  // Concurrent loads of the same flight read the same count; the first one to finish wins.
+  private int load(int fid, int capacity, BookedSeats booked) throws SQLException {
+    int seats = capacity - booked.count(fid);
+    if (remaining.compareAndSet(fid, UNKNOWN, seats)) {
+      return seats;
+    }
+    return remaining.get(fid);
+  }
+}
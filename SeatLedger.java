@@ -0,0 +1,150 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Per-flight seat counts kept on the primary shard, for bookings whose reservations are stored
+ * on other shards.
+ *
+ * With users sharded ({@link ShardRouter}), a flight's reservations are spread over every shard,
+ * so no shard's own FlightSeats table can decide capacity.  Bookings instead take their seats
+ * here first, each with a single auto-commit statement on the primary, and give them back if the
+ * reservation is then not stored.  A process that dies between the two leaves a seat counted
+ * without a reservation, never a reservation without a seat.
+ *
+ * Seats are taken on a pool of the ledger's own ({@code flightapp.seat_ledger.pool_size}), not
+ * the primary's session pool: sessions of users on the primary hold connections from that pool
+ * while booking.
+ */
+public final class SeatLedger {
+  private static final String RESERVE_SEAT_SQL =
+      "UPDATE {FlightSeats} SET booked = booked + 1 WHERE fid = ? AND booked < ?";
+  // A flight's counter starts from the reservations made before sharding, all on the primary
+  private static final String RESERVE_FIRST_SEAT_SQL =
+      "INSERT INTO {FlightSeats} (fid, booked) "
+      + "SELECT ?, c.taken + 1 FROM "
+      + "(SELECT COUNT(*) AS taken FROM {Reservations} "
+      + "WHERE flight1_id = ? OR flight2_id = ?) AS c "
+      + "WHERE c.taken < ? "
+      + "AND NOT EXISTS (SELECT * FROM {FlightSeats} WHERE fid = ?)";
+  private static final String SEAT_COUNTER_SQL =
+      "SELECT booked FROM {FlightSeats} WHERE fid = ?";
+  private static final String RELEASE_SEAT_SQL =
+      "UPDATE {FlightSeats} SET booked = booked - 1 WHERE fid = ? AND booked > 0";
+
+  private static SeatLedger shared;
+
+  private final ConnectionPool pool;
+  private final SchemaManager schema;
+
+  public SeatLedger(ConnectionPool pool, SchemaManager schema) {
+    this.pool = pool;
+    this.schema = schema;
+  }
+
+  /**
+   * Returns the process-wide ledger, configured from dbconn.properties on first use.
+   */
+  public static synchronized SeatLedger shared() throws SQLException, IOException {
+    if (shared == null) {
+      DBConfig config = DBConfig.get();
+      String size = Integer.toString(config.getInt("flightapp.seat_ledger.pool_size", 4));
+      shared = new SeatLedger(new ConnectionPool(config.with("flightapp.pool.max_size", size)
+                                                     .with("flightapp.pool.initial_size", "1")),
+                              SchemaManager.shared());
+    }
+    return shared;
+  }
+
+  /**
+   * Close the process-wide ledger's pool, if the ledger was created.
+   */
+  public static synchronized void closeShared() {
+    if (shared != null) {
+      shared.pool.close();
+      shared = null;
+    }
+  }
+
+  /**
+   * Take a seat on each flight of an itinerary, or on neither.
+   *
+   * @param fid2 the second flight, or 0 for a direct itinerary
+   *
+   * @return whether both flights had a free seat
+   */
+  public boolean reserve(int fid1, int capacity1, int fid2, int capacity2) throws SQLException {
+    Connection conn = pool.lease();
+    try {
+      if (!take(conn, fid1, capacity1)) {
+        return false;
+      }
+      boolean taken = false;
+      try {
+        taken = fid2 == 0 || take(conn, fid2, capacity2);
+      } finally {
+        if (!taken) {
+          give(conn, fid1);
+        }
+      }
+      return taken;
+    } finally {
+      pool.release(conn);
+    }
+  }
+
+  /**
+   * Give back the seats taken by {@link #reserve}, for a booking that was not stored.
+   */
+  public void release(int fid1, int fid2) throws SQLException {
+    Connection conn = pool.lease();
+    try {
+      give(conn, fid1);
+      if (fid2 != 0) {
+        give(conn, fid2);
+      }
+    } finally {
+      pool.release(conn);
+    }
+  }
+
+  private boolean take(Connection conn, int fid, int capacity) throws SQLException {
+    try (PreparedStatement reserve = conn.prepareStatement(schema.sql(RESERVE_SEAT_SQL))) {
+      reserve.setInt(1, fid);
+      reserve.setInt(2, capacity);
+      if (reserve.executeUpdate() == 1) {
+        return true;
+      }
+    }
+
+    // Either the flight is full or nobody has booked it since the counter was introduced.  Only
+    // the latter counts the flight's reservations.
+    try (PreparedStatement counter = conn.prepareStatement(schema.sql(SEAT_COUNTER_SQL))) {
+      counter.setInt(1, fid);
+      try (ResultSet rs = counter.executeQuery()) {
+        if (rs.next()) {
+          return false;
+        }
+      }
+    }
+    try (PreparedStatement first = conn.prepareStatement(schema.sql(RESERVE_FIRST_SEAT_SQL))) {
+      first.setInt(1, fid);
+      first.setInt(2, fid);
+      first.setInt(3, fid);
+      first.setInt(4, capacity);
+      first.setInt(5, fid);
+      return first.executeUpdate() == 1;
+    }
+  }
+
+  private void give(Connection conn, int fid) throws SQLException {
+    try (PreparedStatement release = conn.prepareStatement(schema.sql(RELEASE_SEAT_SQL))) {
+      release.setInt(1, fid);
+      release.executeUpdate();
+    }
+  }
+}
@@ -0,0 +1,26 @@
+package flightapp;
+
+import java.util.List;
+
+/**
+ * Per-user session state, kept separately from the {@code Query} (and database connection) that
+ * serves a command so that many sessions can share a small number of pooled connections.
+ */
+public class Session {
+  // Whether a user has logged in during this session
+  boolean loggedIn;
+
+  // The (lowercased) username of the logged-in user, or null
+  String currentUser;
+
+  // Results of the most recent search, used by book
+  List<Query.Itinerary> lastSearchedItineraries;
+
+  public boolean isLoggedIn() {
+    return loggedIn;
+  }
+
+  public String getCurrentUser() {
+    return currentUser;
+  }
+}
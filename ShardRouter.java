@@ -0,0 +1,258 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Routes each user's rows (Users and Reservations) to one of several databases, by consistent
+ * hash of the lowercased username.
+ *
+ * Shard 0 is the database of dbconn.properties; {@code flightapp.shard_count} adds more, each
+ * given by {@code flightapp.shard.<i>.jdbc_url} (for example several embedded H2 databases,
+ * {@code jdbc:h2:./shard1}, standing in for separate nodes).  Shard 0 is also the primary: it
+ * keeps the reservation ID sequence and, when there is more than one shard, the per-flight seat
+ * counts ({@link SeatLedger}), so that capacity holds across shards.  FLIGHTS is replicated
+ * read-only to every shard, copied from the primary into shards where it is empty unless
+ * {@code flightapp.shard.replicate_flights} is false.
+ *
+ * Each shard owns {@code flightapp.shard.virtual_nodes} points on a hash ring, and a username
+ * belongs to the shard of the first point at or after its hash.  Adding a shard thus moves only
+ * about 1/N of the users, all of them to the new shard.  Reservations made before sharding are
+ * in the original database, shard 0, which is where their users' rows have to be moved from.
+ */
+public final class ShardRouter {
+  private static final int REPLICATION_BATCH = 1000;
+
+  private static ShardRouter shared;
+
+  private final DBConfig[] configs;
+  private final ConnectionPool[] pools;
+
+  // Sorted hash ring: the point's hash, and the shard that owns it
+  private final int[] ringPoints;
+  private final int[] ringShards;
+
+  public ShardRouter(DBConfig config) {
+    int count = Math.max(1, config.getInt("flightapp.shard_count", 1));
+    this.configs = new DBConfig[count];
+    this.pools = new ConnectionPool[count];
+    configs[0] = config;
+    for (int shard = 1; shard < count; shard++) {
+      String url = config.getProperty("flightapp.shard." + shard + ".jdbc_url", null);
+      if (url == null || url.trim().isEmpty()) {
+        throw new IllegalArgumentException("Missing flightapp.shard." + shard + ".jdbc_url");
+      }
+      configs[shard] = config.with("flightapp.jdbc_url", url.trim());
+    }
+
+    int virtualNodes = Math.max(1, config.getInt("flightapp.shard.virtual_nodes", 128));
+    long[] points = new long[count * virtualNodes];
+    for (int shard = 0; shard < count; shard++) {
+      for (int node = 0; node < virtualNodes; node++) {
+        int point = hash("shard-" + shard + "#" + node);
+        // The hash in the high half, so sorting orders by it; the shard in the low half
+        points[shard * virtualNodes + node] = ((long) point << 32) | shard;
+      }
+    }
+    Arrays.sort(points);
+    this.ringPoints = new int[points.length];
+    this.ringShards = new int[points.length];
+    for (int i = 0; i < points.length; i++) {
+      ringPoints[i] = (int) (points[i] >> 32);
+      ringShards[i] = (int) points[i];
+    }
+  }
+
+  /**
+   * Returns the process-wide router, configured from dbconn.properties on first use.  Every
+   * shard's schema is created or migrated ({@link SchemaManager}), FLIGHTS is replicated to the
+   * shards, and the primary's query plans are checked then.
+   */
+  public static synchronized ShardRouter shared() throws IOException, SQLException {
+    if (shared == null) {
+      DBConfig config = DBConfig.get();
+      ShardRouter router = new ShardRouter(config);
+      SchemaManager schema = SchemaManager.shared();
+      if (config.getBoolean("flightapp.schema.bootstrap", true)) {
+        router.bootstrapSchema(schema);
+      }
+      if (router.shardCount() > 1 && config.getBoolean("flightapp.shard.replicate_flights", true)) {
+        router.replicateFlights();
+      }
+      if (config.getBoolean("flightapp.schema.verify_plans", true)) {
+        try (Connection conn = router.openConnection(0)) {
+          for (String warning : schema.verifyPlans(conn)) {
+            System.err.println("Warning: " + warning);
+          }
+        }
+      }
+      shared = router;
+    }
+    return shared;
+  }
+
+  /**
+   * Close the pools of the process-wide router's shards other than the primary (whose pool is
+   * {@link DBConnUtils#getPool()}).
+   */
+  public static synchronized void closeShared() {
+    if (shared != null) {
+      shared.closePools();
+      shared = null;
+    }
+  }
+
+  public int shardCount() {
+    return configs.length;
+  }
+
+  /**
+   * The shard that keeps the user's rows.
+   */
+  public int shardOf(String username) {
+    if (configs.length == 1) {
+      return 0;
+    }
+    int h = hash(username.toLowerCase(Locale.ROOT));
+    int i = Arrays.binarySearch(ringPoints, h);
+    if (i < 0) {
+      i = -i - 1;
+    }
+    return ringShards[i == ringPoints.length ? 0 : i];
+  }
+
+  public DBConfig config(int shard) {
+    return configs[shard];
+  }
+
+  /**
+   * The connection pool of the given shard, created on first use.
+   */
+  public synchronized ConnectionPool pool(int shard) throws SQLException, IOException {
+    if (shard == 0) {
+      return DBConnUtils.getPool();
+    }
+    if (pools[shard] == null) {
+      pools[shard] = new ConnectionPool(configs[shard]);
+    }
+    return pools[shard];
+  }
+
+  /**
+   * Open a new, unpooled connection to the given shard.
+   */
+  public Connection openConnection(int shard) throws SQLException {
+    Connection conn = DriverManager.getConnection(configs[shard].jdbcUrl);
+    conn.setAutoCommit(true);
+    conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+    return conn;
+  }
+
+  private synchronized void closePools() {
+    for (int shard = 1; shard < pools.length; shard++) {
+      if (pools[shard] != null) {
+        pools[shard].close();
+        pools[shard] = null;
+      }
+    }
+  }
+
+  /**
+   * Create or migrate the application's tables and indexes on every shard, and FLIGHTS on the
+   * shards other than the primary, where it is a replica.
+   */
+  public void bootstrapSchema(SchemaManager schema) throws SQLException {
+    try (Connection primary = openConnection(0)) {
+      schema.createOrMigrate(primary, false);
+      for (int shard = 1; shard < configs.length; shard++) {
+        try (Connection replica = openConnection(shard)) {
+          schema.createOrMigrate(replica, true);
+          schema.createFlightsLike(primary, replica);
+        }
+      }
+    }
+  }
+
+  /**
+   * Copy FLIGHTS from the primary into every shard whose FLIGHTS is empty.
+   */
+  public void replicateFlights() throws SQLException {
+    try (Connection primary = openConnection(0)) {
+      for (int shard = 1; shard < configs.length; shard++) {
+        try (Connection replica = openConnection(shard)) {
+          if (!hasFlights(replica)) {
+            copyFlights(primary, replica);
+          }
+        }
+      }
+    }
+  }
+
+  private static boolean hasFlights(Connection conn) throws SQLException {
+    try (Statement stmt = conn.createStatement()) {
+      stmt.setMaxRows(1);
+      try (ResultSet rs = stmt.executeQuery("SELECT fid FROM FLIGHTS")) {
+        return rs.next();
+      }
+    }
+  }
+
+  // Copy every column of every row, in one transaction.
+  private static void copyFlights(Connection from, Connection to) throws SQLException {
+    try (Statement select = from.createStatement();
+         ResultSet rows = select.executeQuery("SELECT * FROM FLIGHTS")) {
+      ResultSetMetaData meta = rows.getMetaData();
+      int columns = meta.getColumnCount();
+      StringBuilder names = new StringBuilder();
+      StringBuilder params = new StringBuilder();
+      for (int i = 1; i <= columns; i++) {
+        names.append(i > 1 ? ", " : "").append(meta.getColumnName(i));
+        params.append(i > 1 ? ", ?" : "?");
+      }
+
+      to.setAutoCommit(false);
+      try (PreparedStatement insert = to.prepareStatement(
+          "INSERT INTO FLIGHTS (" + names + ") VALUES (" + params + ")")) {
+        int batched = 0;
+        while (rows.next()) {
+          for (int i = 1; i <= columns; i++) {
+            insert.setObject(i, rows.getObject(i));
+          }
+          insert.addBatch();
+          if (++batched == REPLICATION_BATCH) {
+            insert.executeBatch();
+            batched = 0;
+          }
+        }
+        if (batched > 0) {
+          insert.executeBatch();
+        }
+        to.commit();
+      } catch (SQLException e) {
+        to.rollback();
+        throw e;
+      } finally {
+        to.setAutoCommit(true);
+      }
+    }
+  }
+
+  // 32-bit hash with MurmurHash3's finalizer over String.hashCode, for an even spread
+  private static int hash(String s) {
+    int h = s.hashCode();
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+}
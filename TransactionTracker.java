@@ -0,0 +1,152 @@
+package flightapp;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Tracks a connection's transaction state on the client, so that dangling transactions can be
+ * detected without asking the server.
+ *
+ * {@link #wrap(Connection)} returns a proxy of the connection that follows auto-commit changes,
+ * commits and rollbacks, and notes when a statement (from any statement the proxy created) runs
+ * while auto-commit is off.  A transaction is open from that first statement until the next
+ * commit, rollback or return to auto-commit, which is when SQL Server's implicit transactions
+ * would count it too.  The auto-commit mode is cached, so reading it, or setting it to what it
+ * already is, costs nothing.  A new isolation level is only sent to the server when a statement
+ * or transaction next needs it, so commands that never reach the database (e.g. searches
+ * answered from a cache) don't pay for switching levels.
+ *
+ * Work the server does on its own (e.g. a batch that runs BEGIN TRANSACTION itself) is not
+ * visible here; that is what the server-side check in {@link QueryAbstract} is for.
+ */
+final class TransactionTracker implements InvocationHandler {
+  private final Connection target;
+  private final Connection proxy;
+
+  private boolean autoCommit;
+  private int isolation;
+  private int appliedIsolation;
+  private boolean pendingWork;
+
+  private TransactionTracker(Connection target) throws SQLException {
+    this.target = target;
+    this.autoCommit = target.getAutoCommit();
+    this.isolation = target.getTransactionIsolation();
+    this.appliedIsolation = isolation;
+    this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                                                     new Class<?>[] {Connection.class}, this);
+  }
+
+  /**
+   * Returns a tracking proxy of conn.  Not thread-safe, like the connection itself.
+   */
+  static TransactionTracker wrap(Connection conn) throws SQLException {
+    return new TransactionTracker(conn);
+  }
+
+  Connection connection() {
+    return proxy;
+  }
+
+  /**
+   * Whether statements have run since the transaction began and it has not ended yet.
+   */
+  boolean inTransaction() {
+    return !autoCommit && pendingWork;
+  }
+
+  @Override
+  public Object invoke(Object self, Method method, Object[] args) throws Throwable {
+    switch (method.getName()) {
+      case "getAutoCommit":
+        return autoCommit;
+      case "setAutoCommit":
+        boolean mode = (Boolean) args[0];
+        if (mode != autoCommit) {
+          if (!mode) {
+            applyIsolation();
+          }
+          // Turning auto-commit on commits the open transaction
+          target.setAutoCommit(mode);
+          autoCommit = mode;
+          pendingWork = false;
+        }
+        return null;
+      case "getTransactionIsolation":
+        return isolation;
+      case "setTransactionIsolation":
+        isolation = (Integer) args[0];
+        if (!autoCommit) {
+          applyIsolation();
+        }
+        return null;
+      case "commit":
+        target.commit();
+        pendingWork = false;
+        return null;
+      case "rollback":
+        Object result = call(target, method, args);
+        if (args == null) {
+          // Rolling back to a savepoint leaves the transaction open
+          pendingWork = false;
+        }
+        return result;
+      case "createStatement":
+      case "prepareStatement":
+      case "prepareCall":
+        Statement statement = (Statement) call(target, method, args);
+        return Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                                      new Class<?>[] {method.getReturnType()},
+                                      new StatementHandler(statement));
+      default:
+        return call(target, method, args);
+    }
+  }
+
+  // Send the requested isolation level, if the server doesn't have it yet
+  private void applyIsolation() throws SQLException {
+    if (isolation != appliedIsolation) {
+      target.setTransactionIsolation(isolation);
+      appliedIsolation = isolation;
+    }
+  }
+
+  private static Object call(Object target, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Notes statements run inside a transaction.
+   */
+  private final class StatementHandler implements InvocationHandler {
+    private final Statement statement;
+
+    StatementHandler(Statement statement) {
+      this.statement = statement;
+    }
+
+    @Override
+    public Object invoke(Object self, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.equals("getConnection")) {
+        return proxy;
+      }
+      if (name.startsWith("execute")) {
+        applyIsolation();
+        if (!autoCommit) {
+          pendingWork = true;
+        }
+      }
+      return call(statement, method, args);
+    }
+  }
+}
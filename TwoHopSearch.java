@@ -0,0 +1,201 @@
+package flightapp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * In-memory replacement for the two-hop self-join over FLIGHTS.
+ *
+ * For each flight leaving the origin on the given day (in increasing actual_time), the
+ * second legs are the (intermediate, dest, day) route run of the {@link FlightIndex}, which is
+ * itself ordered by actual_time.  The best K pairs are kept in a bounded max-heap; because both
+ * loops visit flights in increasing time, the search stops as soon as no remaining pair can beat
+ * the current K-th best total time.  Ties are broken on fid1 and then fid2, as in
+ * {@code Itinerary.compareTo}.
+ */
+final class TwoHopSearch {
+  private TwoHopSearch() {}
+
+  /**
+   * Returns up to k two-hop itineraries from originCity to destCity on the given day, ordered
+   * by (total time, fid1, fid2).
+   */
+  static List<Query.Itinerary> search(FlightIndex index, String originCity, String destCity,
+                                      int dayOfMonth, int k) {
+    List<Query.Itinerary> itineraries = new ArrayList<>();
+    if (k <= 0) {
+      return itineraries;
+    }
+    int originId = index.cityId(originCity);
+    int destId = index.cityId(destCity);
+    if (originId < 0 || destId < 0) {
+      return itineraries;
+    }
+    int outbound = index.findOutbound(originId, dayOfMonth);
+    int minSecondLeg = index.minInboundTime(destId, dayOfMonth);
+    if (outbound < 0 || minSecondLeg < 0) {
+      return itineraries;
+    }
+
+    TopK top = new TopK(k, index.fid);
+    for (int i = index.outboundStart(outbound); i < index.outboundEnd(outbound); i++) {
+      int first = index.outboundRow(i);
+      int firstTime = index.time[first];
+      if (top.isFull() && firstTime + minSecondLeg > top.worstTotal()) {
+        // Every later first leg is at least as long
+        break;
+      }
+
+      int route = index.findRoute(index.dest[first], destId, dayOfMonth);
+      if (route < 0) {
+        continue;
+      }
+      for (int second = index.routeStart(route); second < index.routeEnd(route); second++) {
+        int total = firstTime + index.time[second];
+        if (top.isFull() && total > top.worstTotal()) {
+          break;
+        }
+        top.offer(first, second, total);
+      }
+    }
+
+    int[] order = top.drainSorted();
+    for (int i = 0; i < order.length; i++) {
+      int first = top.first[order[i]];
+      int second = top.second[order[i]];
+      // The intermediate city is reported as stored; the endpoints as given
+      String via = index.cityNames[index.dest[first]];
+      itineraries.add(new Query.Itinerary(index.toFlight(first, originCity, via),
+                                          index.toFlight(second, via, destCity)));
+    }
+    return itineraries;
+  }
+
+  /**
+   * A bounded max-heap of (first row, second row, total time) triples, ordered by
+   * (total, fid1, fid2), so the root is the worst of the best K seen so far.  The arrays grow
+   * as the heap fills, since K comes from the user and may be far more than there are pairs.
+   */
+  private static final class TopK {
+    private static final int INITIAL_CAPACITY = 16;
+
+    int[] first;
+    int[] second;
+    int[] total;
+    private int[] heap;
+    private final int[] fid;
+    private final int k;
+    private int size;
+
+    TopK(int k, int[] fid) {
+      int capacity = Math.min(k, INITIAL_CAPACITY);
+      this.first = new int[capacity];
+      this.second = new int[capacity];
+      this.total = new int[capacity];
+      this.heap = new int[capacity];
+      this.fid = fid;
+      this.k = k;
+    }
+
+    boolean isFull() {
+      return size == k;
+    }
+
+    int worstTotal() {
+      return total[heap[0]];
+    }
+
+    void offer(int firstRow, int secondRow, int totalTime) {
+      if (!isFull()) {
+        if (size == heap.length) {
+          grow();
+        }
+        first[size] = firstRow;
+        second[size] = secondRow;
+        total[size] = totalTime;
+        heap[size] = size;
+        siftUp(size);
+        size++;
+        return;
+      }
+      int worst = heap[0];
+      if (compare(totalTime, firstRow, secondRow, worst) >= 0) {
+        return;
+      }
+      first[worst] = firstRow;
+      second[worst] = secondRow;
+      total[worst] = totalTime;
+      siftDown(0);
+    }
+
+    private void grow() {
+      int capacity = (int) Math.min(k, 2L * heap.length);
+      first = Arrays.copyOf(first, capacity);
+      second = Arrays.copyOf(second, capacity);
+      total = Arrays.copyOf(total, capacity);
+      heap = Arrays.copyOf(heap, capacity);
+    }
+
+    /**
+     * Returns the slots of the heap in increasing order.  The heap is empty afterwards.
+     */
+    int[] drainSorted() {
+      int[] order = new int[size];
+      while (size > 0) {
+        order[size - 1] = heap[0];
+        size--;
+        heap[0] = heap[size];
+        siftDown(0);
+      }
+      return order;
+    }
+
+    private int compare(int totalTime, int firstRow, int secondRow, int slot) {
+      int cmp = Integer.compare(totalTime, total[slot]);
+      if (cmp == 0) cmp = Integer.compare(fid[firstRow], fid[first[slot]]);
+      if (cmp == 0) cmp = Integer.compare(fid[secondRow], fid[second[slot]]);
+      return cmp;
+    }
+
+    private int compareSlots(int a, int b) {
+      return compare(total[a], first[a], second[a], b);
+    }
+
+    private void siftUp(int i) {
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+        if (compareSlots(heap[i], heap[parent]) <= 0) {
+          return;
+        }
+        swap(i, parent);
+        i = parent;
+      }
+    }
+
+    private void siftDown(int i) {
+      while (true) {
+        int left = 2 * i + 1;
+        if (left >= size) {
+          return;
+        }
+        int largest = left;
+        int right = left + 1;
+        if (right < size && compareSlots(heap[right], heap[left]) > 0) {
+          largest = right;
+        }
+        if (compareSlots(heap[largest], heap[i]) <= 0) {
+          return;
+        }
+        swap(i, largest);
+        i = largest;
+      }
+    }
+
+    private void swap(int a, int b) {
+      int tmp = heap[a];
+      heap[a] = heap[b];
+      heap[b] = tmp;
+    }
+  }
+}